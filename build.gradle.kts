@@ -3,6 +3,7 @@ plugins {
     application
     id("com.gradleup.shadow") version "8.3.5"
     id("org.graalvm.buildtools.native") version "0.11.0"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 group = "canaryprism"
@@ -33,11 +34,29 @@ dependencies {
 }
 
 
+// the compilation cache keys classes by this so upgrading jbfc doesn't hand out classes the old version compiled
+tasks.jar {
+    manifest {
+        attributes("Implementation-Version" to project.version)
+    }
+}
+
 tasks.shadowJar {
     mergeServiceFiles()
     archiveClassifier = null
 }
 
+// ./gradlew jmh, or ./gradlew jmh -Pjmh.includes=StagesBenchmark to only run some
+jmh {
+    jmhVersion = "1.37"
+    // Programs lives with the tests so they can check generated code against it too
+    includeTests = true
+    // allocation rate next to throughput, most regressions in the passes show up in both
+    profilers = listOf("gc")
+    resultFormat = "JSON"
+    (findProperty("jmh.includes") as String?)?.let { includes = listOf(it) }
+}
+
 tasks.test {
     useJUnitPlatform()
 }
\ No newline at end of file
@@ -0,0 +1,70 @@
+package canaryprism.jbfc.bench;
+
+import canaryprism.jbfc.Main;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+// the whole thing from reading the file to writing the class file, through the same command line jbfc gets
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MainBenchmark {
+    
+    @Param({ "hello", "text", "nested" })
+    private String program;
+    
+    @Param({ "10000" })
+    private int size;
+    
+    @Param({ "none", "flow", "offset", "state" })
+    private String optimise;
+    
+    private Path directory;
+    private Path input;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("jbfc-benchmark");
+        input = Files.writeString(directory.resolve(program + ".bf"), Programs.get(program, size));
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (var files = Files.walk(directory)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+    
+    @Benchmark
+    public int compile() {
+        var exit_code = new CommandLine(new Main())
+                .setCaseInsensitiveEnumValuesAllowed(true)
+                .execute("-d", directory.toString(), "-o", optimise, input.toString());
+        if (exit_code != 0)
+            throw new IllegalStateException("jbfc exited with " + exit_code);
+        return exit_code;
+    }
+}
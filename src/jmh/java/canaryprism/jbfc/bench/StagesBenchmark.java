@@ -0,0 +1,93 @@
+package canaryprism.jbfc.bench;
+
+import canaryprism.jbfc.bf.BrainfuckInstruction;
+import canaryprism.jbfc.codegen.ClassGenerator;
+import canaryprism.jbfc.optimise.collapse.CollapseInstruction;
+import canaryprism.jbfc.optimise.collapse.CollapseOptimisation;
+import canaryprism.jbfc.optimise.flow.FlowInstruction;
+import canaryprism.jbfc.optimise.flow.FlowOptimisation;
+import canaryprism.jbfc.optimise.offset.OffsetInstruction;
+import canaryprism.jbfc.optimise.offset.OffsetOptimisation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.constant.ClassDesc;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// every stage of the compiler on its own, each one gets the output of the stages before it precomputed in setup
+// state isn't in here since it runs the program while compiling it, see StateBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StagesBenchmark {
+    
+    @Param({ "hello", "text", "nested" })
+    private String program;
+    
+    @Param({ "10000", "1000000" })
+    private int size;
+    
+    private byte[] source;
+    private List<BrainfuckInstruction> parsed;
+    private List<CollapseInstruction> collapsed;
+    private List<FlowInstruction> flowed;
+    private List<OffsetInstruction> offset;
+    
+    private final ClassGenerator generator = new ClassGenerator();
+    private final ClassDesc self = ClassDesc.of("Benchmark");
+    
+    @Setup
+    public void setup() throws IOException {
+        source = Programs.get(program, size).getBytes(StandardCharsets.US_ASCII);
+        parsed = BrainfuckInstruction.parse(new ByteArrayInputStream(source));
+        collapsed = new CollapseOptimisation().optimise(parsed);
+        flowed = new FlowOptimisation().optimise(collapsed);
+        offset = new OffsetOptimisation().optimise(flowed);
+    }
+    
+    @Benchmark
+    public List<BrainfuckInstruction> parse() throws IOException {
+        return BrainfuckInstruction.parse(new ByteArrayInputStream(source));
+    }
+    
+    @Benchmark
+    public List<CollapseInstruction> collapse() {
+        return new CollapseOptimisation().optimise(parsed);
+    }
+    
+    @Benchmark
+    public List<FlowInstruction> flow() {
+        return new FlowOptimisation().optimise(collapsed);
+    }
+    
+    @Benchmark
+    public List<OffsetInstruction> offset() {
+        return new OffsetOptimisation().optimise(flowed);
+    }
+    
+    @Benchmark
+    public byte[] generateFlow() {
+        return generator.generate(self, flowed);
+    }
+    
+    @Benchmark
+    public byte[] generateOffset() {
+        return generator.generate(self, offset);
+    }
+}
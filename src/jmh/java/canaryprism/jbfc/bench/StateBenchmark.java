@@ -0,0 +1,56 @@
+package canaryprism.jbfc.bench;
+
+import canaryprism.jbfc.bf.BrainfuckInstruction;
+import canaryprism.jbfc.optimise.collapse.CollapseOptimisation;
+import canaryprism.jbfc.optimise.flow.FlowInstruction;
+import canaryprism.jbfc.optimise.flow.FlowOptimisation;
+import canaryprism.jbfc.optimise.state.StateInstruction;
+import canaryprism.jbfc.optimise.state.StateOptimisation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// state on its own since it's orders of magnitude slower than the other stages, it compiles and runs the program
+// it's optimising, so the sizes are smaller too
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StateBenchmark {
+    
+    @Param({ "hello", "text", "nested" })
+    private String program;
+    
+    @Param({ "1000", "10000" })
+    private int size;
+    
+    private List<FlowInstruction> flowed;
+    
+    @Setup
+    public void setup() throws IOException {
+        var source = Programs.get(program, size).getBytes(StandardCharsets.US_ASCII);
+        flowed = new FlowOptimisation().optimise(new CollapseOptimisation().optimise(
+                BrainfuckInstruction.parse(new ByteArrayInputStream(source))));
+    }
+    
+    @Benchmark
+    public List<StateInstruction> state() {
+        return new StateOptimisation().optimise(flowed);
+    }
+}
@@ -1,8 +1,15 @@
 package canaryprism.jbfc;
 
+import java.io.OutputStream;
 import java.lang.classfile.ClassBuilder;
 import java.lang.classfile.CodeBuilder;
 import java.lang.constant.ClassDesc;
+import java.lang.constant.MethodTypeDesc;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.function.Consumer;
 
 public interface Instruction {
@@ -11,11 +18,51 @@ public interface Instruction {
     
     default void writeClass(ClassBuilder class_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {}
     
+    /**
+     * names a method holding the given instructions after what they are, so identical bodies get the same name and
+     * the class generator only writes one of them
+     * <p>
+     * {@link Outlined} instructions go in by their own name and everything else by {@code toString()}, so instructions
+     * that end up in such a method have to describe everything they do there (records already do), and a name only
+     * costs as much as the instructions directly in the method however deep they nest
+     */
+    static String methodName(String prefix, List<? extends Instruction> instructions) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            for (var instruction : instructions) {
+                var description = (instruction instanceof Outlined outlined) ? outlined.name() : instruction.toString();
+                digest.update(description.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return prefix + HexFormat.of().formatHex(digest.digest(), 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    // the array's element type depends on the cell type being compiled for so instructions should access cells
+    // through loadIndex, storeIndex and incIndex, storeIndex and incIndex take care of wrapping values to the cell size
     interface Array {
         Consumer<CodeBuilder.BlockCodeBuilder> load();
         Consumer<CodeBuilder.BlockCodeBuilder> loadIndex(Pointer pointer);
         Consumer<CodeBuilder.BlockCodeBuilder> storeIndex(Pointer pointer, Value value);
         Consumer<CodeBuilder.BlockCodeBuilder> incIndex(Pointer pointer, Value amount);
+        
+        // moves the pointer by step until it lands on a cell that's 0
+        default Consumer<CodeBuilder.BlockCodeBuilder> findZero(Pointer pointer, int step) {
+            return (builder) -> {
+                var start = builder.newLabel();
+                var end = builder.newLabel();
+                
+                builder
+                        .labelBinding(start)
+                        .block(loadIndex(pointer))
+                        .ifeq(end)
+                        .block(pointer.inc(step))
+                        .goto_(start)
+                        .labelBinding(end);
+            };
+        }
     }
     
     interface Pointer {
@@ -23,6 +70,101 @@ public interface Instruction {
         Consumer<CodeBuilder.BlockCodeBuilder> store(Value value);
         Consumer<CodeBuilder.BlockCodeBuilder> inc(Value amount);
         Consumer<CodeBuilder.BlockCodeBuilder> inc(int amount);
+        
+        // how the pointer (and array) get passed through methods that instructions outline code into, like loop bodies
+        
+        default MethodTypeDesc methodType() {
+            return MethodTypeDesc.ofDescriptor("()V");
+        }
+        default Consumer<CodeBuilder.BlockCodeBuilder> invoke(ClassDesc owner, String name) {
+            return (builder) -> builder
+                    .invokestatic(owner, name, methodType());
+        }
+        default Consumer<CodeBuilder.BlockCodeBuilder> return_() {
+            return CodeBuilder::return_;
+        }
+        
+        // makes sure the cells from low to high (relative to this one) exist before they get indexed with offset(),
+        // moving the pointer itself already takes care of the cell it lands on
+        default Consumer<CodeBuilder.BlockCodeBuilder> reserve(int low, int high) {
+            return (_) -> {};
+        }
+        
+        // a pointer to the cell at some offset from this one, only good for indexing into the array
+        default Pointer offset(int offset) {
+            if (offset == 0)
+                return this;
+            var base = this;
+            return new Pointer() {
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                    return (builder) -> builder
+                            .block(base.load())
+                            .loadConstant(offset)
+                            .iadd();
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> store(Value value) {
+                    throw new UnsupportedOperationException("offset pointers can't be moved");
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> inc(Value amount) {
+                    throw new UnsupportedOperationException("offset pointers can't be moved");
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> inc(int amount) {
+                    throw new UnsupportedOperationException("offset pointers can't be moved");
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> reserve(int low, int high) {
+                    return base.reserve(offset + low, offset + high);
+                }
+            };
+        }
+    }
+    
+    // instructions that run their instructions over and over while the current cell isn't 0,
+    // the class generator may replace them with its own loop when their body has to be split into smaller methods
+    interface Nested extends Instruction {
+        List<? extends Instruction> instructions();
+    }
+    
+    // instructions that write their code into a method of their own named with methodName(), the class generator
+    // writes the first instruction of every name and has the rest call it, so they have to write the same method
+    interface Outlined extends Instruction {
+        String name();
+    }
+    
+    // straight line instructions that only look at and change cells around the pointer (and maybe move it),
+    // the class generator puts runs of these into one block that keeps the cells they touch in locals,
+    // so a cell a few of them share gets loaded and stored once instead of once per instruction
+    interface Straight extends Instruction {
+        // does what writeCode does, except every cell goes through cells
+        void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output);
+    }
+    
+    // the cells cached by a block of Straight instructions, offsets are relative to where the pointer would be by now
+    // but the real pointer only moves at the end of the block
+    // the values in locals aren't wrapped to the cell size, they only ever get added and multiplied
+    // so wrapping them when they're stored gives the same result
+    interface Cells {
+        // the local holding the cell at offset, it gets loaded from the tape the first time
+        int load(int offset);
+        // the local for a cell that's about to be overwritten, so there's no point loading it
+        int overwrite(int offset);
+        void add(int offset, Consumer<CodeBuilder.BlockCodeBuilder> amount);
+        void move(int amount);
+        // makes sure the cells from low to high exist, like Pointer.reserve()
+        void reserve(int low, int high);
+        // stores the cell at offset if it changed and returns a pointer to it, for instructions that need to see it
+        // on the tape, like writing it out
+        Pointer sync(int offset);
+        // forgets the cell at offset and returns a pointer to it, for instructions that overwrite it on the tape
+        Pointer discard(int offset);
     }
     
     interface Value {
@@ -37,15 +179,25 @@ public interface Instruction {
                     .block(write());
         }
         Consumer<CodeBuilder.BlockCodeBuilder> write();
+        
+        // expects load() and then a byte[], an offset and a length on the stack
+        default Consumer<CodeBuilder.BlockCodeBuilder> writeBytes() {
+            return (builder) -> builder
+                    .invokevirtual(OutputStream.class.describeConstable().orElseThrow(), "write",
+                            MethodTypeDesc.ofDescriptor("([BII)V"));
+        }
+        default Consumer<CodeBuilder.BlockCodeBuilder> flush() {
+            return (builder) -> builder
+                    .block(load())
+                    .invokevirtual(OutputStream.class.describeConstable().orElseThrow(), "flush",
+                            MethodTypeDesc.ofDescriptor("()V"));
+        }
     }
     interface Input extends Value {
         default Consumer<CodeBuilder.BlockCodeBuilder> read(Array array, Pointer pointer) {
-            return (builder) -> builder
-                    .block(array.load())
-                    .block(pointer.load())
+            return array.storeIndex(pointer, () -> (builder) -> builder
                     .block(load())
-                    .block(read())
-                    .iastore();
+                    .block(read()));
         }
         Consumer<CodeBuilder.BlockCodeBuilder> read();
     }
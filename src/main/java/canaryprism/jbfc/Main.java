@@ -1,34 +1,47 @@
 package canaryprism.jbfc;
 
 import canaryprism.jbfc.bf.BrainfuckInstruction;
+import canaryprism.jbfc.cache.CompilationCache;
+import canaryprism.jbfc.codegen.ClassGenerator;
+import canaryprism.jbfc.daemon.Daemon;
+import canaryprism.jbfc.interpret.Interpreter;
 import canaryprism.jbfc.optimise.Optimisation;
+import canaryprism.jbfc.optimise.PassManager;
+import canaryprism.jbfc.optimise.collapse.CollapseOptimisation;
+import canaryprism.jbfc.optimise.flow.FlowOptimisation;
+import canaryprism.jbfc.optimise.state.StateOptimisation;
+import canaryprism.jbfc.tiered.TieredEngine;
 import picocli.CommandLine;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintStream;
-import java.lang.classfile.ClassFile;
-import java.lang.classfile.CodeBuilder;
-import java.lang.classfile.TypeKind;
+import java.io.UncheckedIOException;
 import java.lang.constant.ClassDesc;
-import java.lang.constant.MethodTypeDesc;
-import java.lang.reflect.AccessFlag;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.ServiceLoader;
-import java.util.function.Consumer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.Predicate;
 
 import static picocli.CommandLine.Help.Ansi.AUTO;
 
 @CommandLine.Command
-public class Main implements Runnable {
+public class Main implements Runnable, CommandLine.IExitCodeGenerator {
     
     @CommandLine.Option(names = { "-d", "--output-path" }, description = "specify where to place generated class files")
     private Path output_path = Path.of(".");
@@ -37,29 +50,372 @@ public class Main implements Runnable {
             description = "specify paths to jar files that jbfc should load to discover optimisations")
     private List<Path> extension_paths = List.of();
     
-    @CommandLine.Option(names = { "-o", "--optimise" }, description = "the level of optimisation to use ('none' for no optimisation)")
+    @CommandLine.Option(names = { "-o", "--optimise" }, description = "the level of optimisation to use ('none' for no optimisation), "
+            + "or a comma separated pipeline of optimisations like 'collapse,flow,offset' that get run in that order, "
+            + "whatever the first one needs to run first is added automatically and a + after an optimisation "
+            + "runs it over and over until its output stops changing, that works for flow, offset and optimisations "
+            + "that take their own output")
     private String optimise = "state";
     
+    @CommandLine.Option(names = { "--time-passes" }, description = "print how long every optimisation took on every file, "
+            + "how much it allocated and how many instructions it got and gave back")
+    private boolean time_passes = false;
+    
     @CommandLine.Option(names = { "-w", "--write-instructions" }, description = "write the final instruction list the compiler will write for every input file")
     private boolean write_instructions = false;
     
-    @CommandLine.Parameters(arity = "1..")
-    private List<Path> input_paths;
+    @CommandLine.Option(names = { "-s", "--storage" }, description = "where generated code keeps the array and pointer (${COMPLETION-CANDIDATES})")
+    private ClassGenerator.Storage storage = ClassGenerator.Storage.STATIC;
+    
+    @CommandLine.Option(names = { "--output-mode" }, description = "how generated programs write their output (${COMPLETION-CANDIDATES}), "
+            + "use 'direct' to see output the moment it's written")
+    private ClassGenerator.OutputMode output_mode = ClassGenerator.OutputMode.BUFFERED;
+    
+    @CommandLine.Option(names = { "--input-mode" }, description = "how generated programs read their input (${COMPLETION-CANDIDATES}), "
+            + "'mapped' programs read the file passed as their first argument instead of stdin")
+    private ClassGenerator.InputMode input_mode = ClassGenerator.InputMode.BUFFERED;
+    
+    @CommandLine.Option(names = { "--cell-type" }, description = "the element type of the tape (${COMPLETION-CANDIDATES}), "
+            + "'masked_int' and 'byte' cells are 8 bits, 'char' cells 16 bits and 'int' cells 32 bits")
+    private ClassGenerator.CellType cell_type = ClassGenerator.CellType.MASKED_INT;
+    
+    @CommandLine.Option(names = { "--tape" }, description = "whether the tape has a fixed size or grows when the pointer walks off it (${COMPLETION-CANDIDATES})")
+    private ClassGenerator.Tape tape = ClassGenerator.Tape.FIXED;
+    
+    @CommandLine.Option(names = { "--tape-size" }, description = "how many cells the tape starts with (80000 for a fixed tape, 4096 for a growable one)")
+    private Integer tape_size;
+    
+    @CommandLine.Option(names = { "--tape-start" }, description = "the cell the pointer starts at (the middle of the tape by default)")
+    private Integer tape_start;
+    
+    @CommandLine.Option(names = { "--method-size" }, description = "roughly how many bytes of bytecode a generated method can have "
+            + "before it gets split up, HotSpot won't JIT compile methods over 8000 bytes (default: ${DEFAULT-VALUE})")
+    private int method_size = ClassGenerator.DEFAULT_METHOD_SIZE;
+    
+    @CommandLine.Option(names = { "--find-zero" }, description = "how scans for a 0 cell like [>] and [<] get compiled (${COMPLETION-CANDIDATES}), "
+            + "'helper' calls a method that checks 8 cells at a time on byte tapes")
+    private ClassGenerator.FindZeroMode find_zero_mode = ClassGenerator.FindZeroMode.LOOP;
+    
+    @CommandLine.Option(names = { "--state-budget" }, description = "roughly how many steps 'state' runs a program without input for at compile time "
+            + "before it gives up and compiles the rest as is, only what finished by the last top level instruction or "
+            + "check of a top level loop gets kept (default: ${DEFAULT-VALUE})")
+    private long state_budget = StateOptimisation.DEFAULT_BUDGET;
+    
+    @CommandLine.Option(names = { "-j", "--jobs" }, description = "how many input files get compiled at the same time "
+            + "(default: the number of processors)")
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    
+    @CommandLine.Option(names = { "--cache" }, description = "a directory to keep compiled classes in, files that were compiled "
+            + "before with the same options, extensions and version of jbfc get copied from there instead of being compiled again")
+    private Path cache_path;
+    
+    @CommandLine.Parameters(arity = "0..*")
+    private List<Path> input_paths = List.of();
+    
+    // the passes and the class generator recurse once per level of loop nesting, a normal thread's stack is fine up to
+    // SHALLOW_DEPTH levels and programs nested deeper than that get a thread with STACK_PER_LEVEL bytes for every level
+    private static final int SHALLOW_DEPTH = 1000;
+    private static final long STACK_PER_LEVEL = 16 << 10;
+    
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+    
+    private PassManager passes;
+    
+    // how many input files failed to compile
+    private int failed = 0;
+    
+    // what relative paths are relative to, and pipelines that were already found keyed by everything
+    // that goes into finding them, the daemon shares them between every request (null when there's no daemon)
+    private final Path working_directory;
+    private final Map<List<Object>, PassManager> chains;
+    
+    public Main() {
+        this(Path.of(""), null);
+    }
     
-    private final ArrayDeque<Optimisation<?, ?>> optimisations = new ArrayDeque<>();
+    /**
+     * a Main for compiling requests in a {@link Daemon}, relative paths get resolved against the given working directory
+     * and optimisations are only looked up the first time a combination of options asks for them
+     */
+    public Main(Path working_directory, Map<List<Object>, PassManager> chains) {
+        this.working_directory = working_directory;
+        this.chains = chains;
+    }
     
     @Override
     public void run() {
+        var out = spec.commandLine().getOut();
+        
+        if (input_paths.isEmpty()) {
+            out.println(AUTO.string("@|red Error: no input files|@"));
+            return;
+        }
         if (input_paths.stream()
                 .map(Path::getFileName)
                 .distinct()
                 .count() != input_paths.size()) {
-            System.out.println(AUTO.string("@|red Error: duplicate filenames found|@"));
+            out.println(AUTO.string("@|red Error: duplicate filenames found|@"));
+            return;
+        }
+        
+        if (jobs <= 0) {
+            out.println(AUTO.string("@|red Error: --jobs must be positive|@"));
+            return;
+        }
+        
+        loadOptimisations();
+        var generator = generator();
+        var cache = (cache_path != null) ? new CompilationCache(working_directory.resolve(cache_path)) : null;
+        var configuration = (cache != null) ? configuration() : null;
+        
+        // every file gets compiled on its own, the optimisations and generator are shared between all of them
+        // (see Optimisation), results are only looked at in the order the files were given so what gets
+        // printed doesn't depend on which file finished first
+        try (var executor = Executors.newFixedThreadPool(Math.min(jobs, input_paths.size()))) {
+            var results = new ArrayList<Future<Compiled>>();
+            for (var input : input_paths) {
+                results.add(executor.submit(() -> compile(input, generator, cache, configuration)));
+            }
+            
+            for (int i = 0; i < input_paths.size(); i++) {
+                try {
+                    var compiled = results.get(i).get();
+                    
+                    for (var warning : compiled.warnings()) {
+                        out.println(AUTO.string("@|yellow Warning: " + input_paths.get(i) + ": " + warning + "|@"));
+                    }
+                    
+                    if (write_instructions)
+                        for (var instruction : compiled.instructions()) {
+                            out.println(instruction);
+                        }
+                    
+                    if (time_passes) {
+                        out.println(input_paths.get(i) + ":");
+                        for (var timing : compiled.timings()) {
+                            out.println("    " + timing);
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    failed++;
+                    out.println(AUTO.string("@|red Error: failed to compile " + input_paths.get(i) + "|@"));
+                    e.getCause().printStackTrace(out);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    @Override
+    public int getExitCode() {
+        return (failed > 0) ? 1 : 0;
+    }
+    
+    // what compile() has to say about a file, instructions are only there for -w and timings for --time-passes
+    private record Compiled(List<? extends Instruction> instructions, List<PassManager.Timing> timings, List<String> warnings) {}
+    
+    private Compiled compile(Path input, ClassGenerator generator, CompilationCache cache, String configuration) throws IOException {
+        var output = working_directory.resolve(output_path).resolve(className(input) + ".class");
+        var source = Files.readAllBytes(working_directory.resolve(input));
+        var key = (cache != null) ? CompilationCache.key(List.of(configuration, className(input), CompilationCache.hash(source))) : null;
+        
+        // -w and --time-passes need the passes to actually run so they always compile
+        if (cache != null && !write_instructions && !time_passes) {
+            var cached = cache.get(key);
+            if (cached.isPresent()) {
+                Files.write(output, cached.get());
+                return new Compiled(List.of(), List.of(), List.of());
+            }
+        }
+        
+        var depth = depth(source);
+        var timings = (time_passes) ? new ArrayList<PassManager.Timing>() : null;
+        var warnings = new ArrayList<String>();
+        var instructions = withStackFor(depth, () -> passes.run(source, timings, warnings));
+        
+        var data = withStackFor(depth, () -> generator.generate(ClassDesc.of(className(input)), instructions));
+        Files.write(output, data);
+        
+        if (cache != null)
+            cache.put(key, data);
+        
+        return new Compiled((write_instructions) ? instructions : List.of(), (time_passes) ? timings : List.of(), warnings);
+    }
+    
+    // everything besides the file itself that changes what a class comes out as, the cache's keys are made from this
+    private String configuration() {
+        var parts = new ArrayList<Object>();
+        parts.add(Objects.requireNonNullElse(Main.class.getPackage().getImplementationVersion(), "dev"));
+        for (var pass : passes.passes()) {
+            parts.add(pass.optimisation().getClass().getName() + " " + pass);
+        }
+        parts.addAll(Arrays.asList(optimise, state_budget, storage, output_mode, input_mode, cell_type, tape,
+                tape_size, tape_start, method_size, find_zero_mode));
+        try {
+            for (var extension : extension_paths) {
+                parts.add(CompilationCache.hash(working_directory.resolve(extension)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return CompilationCache.key(parts);
+    }
+    
+    @CommandLine.Command(name = "daemon", description = "keep this JVM running and compile whatever canaryprism.jbfc.daemon.Client "
+            + "sends over a unix domain socket, the options here are ignored since every request brings its own")
+    void daemon(@CommandLine.Parameters(index = "0", paramLabel = "SOCKET") Path socket) {
+        try {
+            new Daemon().serve(socket);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    @CommandLine.Command(name = "run", description = "compile a program and run it straight away inside this JVM, no class files get written")
+    int run(@CommandLine.Option(names = { "--tiered" }, description = "interpret the program at 'flow' level and only compile loops "
+                    + "once they've gone around --compile-threshold times, the other options besides --cell-type, --tape-size and --tape-start are ignored") boolean tiered,
+            @CommandLine.Option(names = { "--compile-threshold" }, defaultValue = "" + TieredEngine.DEFAULT_THRESHOLD,
+                    description = "how many times a loop goes around in the interpreter before it gets compiled (default: ${DEFAULT-VALUE})") int threshold,
+            @CommandLine.Option(names = { "--interpret" }, description = "don't generate any classes, run the optimised instructions "
+                    + "in an interpreter instead, starts up faster for small programs and works in a native image, "
+                    + "--storage, --output-mode, --find-zero and --method-size only change generated code so they're ignored") boolean interpret,
+            @CommandLine.Parameters(index = "0", paramLabel = "FILE") Path input,
+            @CommandLine.Parameters(index = "1..*", paramLabel = "ARGS", description = "arguments passed to the program") List<String> args) {
+        // stdout is the program's so errors and warnings go to stderr
+        if (tiered && interpret) {
+            System.err.println(AUTO.string("@|red Error: --tiered and --interpret can't be used together|@"));
+            return 1;
+        }
+        
+        if (tiered && cell_type == ClassGenerator.CellType.CHAR) {
+            System.err.println(AUTO.string("@|red Error: --tiered can't run char cells|@"));
+            return 1;
+        }
+        
+        if (interpret && input_mode == ClassGenerator.InputMode.MAPPED) {
+            System.err.println(AUTO.string("@|red Error: --interpret can't read mapped input|@"));
+            return 1;
+        }
+        
+        byte[] source;
+        try {
+            source = Files.readAllBytes(working_directory.resolve(input));
+        } catch (IOException e) {
+            throw new RuntimeException("failed to read " + input, e);
+        }
+        var depth = depth(source);
+        
+        if (tiered) {
+            var engine = new TieredEngine()
+                    .threshold(threshold)
+                    .cellType(cell_type);
+            if (tape_size != null)
+                engine.tapeSize(tape_size);
+            if (tape_start != null)
+                engine.tapeStart(tape_start);
+            
+            // the interpreter recurses into every loop it runs, and so does naming them
+            try {
+                withStackFor(depth, () -> {
+                    engine.run(new FlowOptimisation().forCellSize(cell_type.bits())
+                            .optimise(new CollapseOptimisation().optimise(BrainfuckInstruction.parse(new ByteArrayInputStream(source)))));
+                    return null;
+                });
+            } catch (IOException e) {
+                throw new RuntimeException("failed to parse " + input, e);
+            }
+            return 0;
+        }
+        
+        loadOptimisations();
+        List<? extends Instruction> instructions;
+        var warnings = new ArrayList<String>();
+        try {
+            instructions = withStackFor(depth, () -> passes.run(source, null, warnings));
+        } catch (IOException e) {
+            throw new RuntimeException("failed to parse " + input, e);
+        }
+        for (var warning : warnings) {
+            System.err.println(AUTO.string("@|yellow Warning: " + input + ": " + warning + "|@"));
+        }
+        
+        if (write_instructions)
+            for (var instruction : instructions) {
+                System.out.println(instruction);
+            }
+        
+        if (interpret) {
+            var interpreter = new Interpreter()
+                    .cellBits(cell_type.bits())
+                    .tape(tape);
+            if (tape_size != null)
+                interpreter.tapeSize(tape_size);
+            if (tape_start != null)
+                interpreter.tapeStart(tape_start);
+            
+            System.out.flush();
+            // lowering recurses into every loop
+            try {
+                withStackFor(depth, () -> {
+                    interpreter.run(instructions);
+                    return null;
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return 0;
+        }
+        
+        // a hidden class has to be in the same package as the lookup that defines it
+        var lookup = MethodHandles.lookup();
+        var generator = generator();
+        byte[] data;
+        try {
+            data = withStackFor(depth, () -> generator.generate(ClassDesc.of(lookup.lookupClass().getPackageName(), className(input)), instructions));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        
+        String[] program_args = (args == null) ? new String[0] : args.toArray(String[]::new);
+        try {
+            var program = lookup.defineHiddenClass(data, true);
+            var main = program.findStatic(program.lookupClass(), "main", MethodType.methodType(void.class, String[].class));
+            // the program writes to stdout without going through System.out, so -w output has to go out first
+            System.out.flush();
+            main.invokeExact(program_args);
+        } catch (Throwable e) {
+            throw new RuntimeException("failed to run " + input, e);
+        }
+        return 0;
+    }
+    
+    private void loadOptimisations() {
+        if (chains == null) {
+            passes = findPasses();
             return;
         }
         
-        find_optimisation:
+        // the extensions go in by what's in them too, so rebuilding a jar at the same path doesn't keep the old passes
+        var key = new ArrayList<Object>(List.of(optimise, cell_type.bits(), state_budget));
+        try {
+            for (var extension : extension_paths) {
+                var path = working_directory.resolve(extension);
+                key.add(List.of(path, CompilationCache.hash(path)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        passes = chains.computeIfAbsent(List.copyOf(key), (_) -> findPasses());
+    }
+    
+    private PassManager findPasses() {
+        if (optimise.equals("none"))
+            return new PassManager(List.of());
+        
         try (var extension_classloader = new URLClassLoader(extension_paths.stream()
+                .map(working_directory::resolve)
                 .map(Path::toUri)
                 .map((e) -> {
                     try {
@@ -70,206 +426,127 @@ public class Main implements Runnable {
                 })
                 .toArray(URL[]::new))) {
             
-            if (optimise.equals("none"))
-                break find_optimisation;
-            
             var extension_loader = ServiceLoader.load(Optimisation.class, extension_classloader);
             var loader = ServiceLoader.load(Optimisation.class);
             
-            var optimisation = extension_loader.stream()
-                    .map(ServiceLoader.Provider::get)
-                    .filter((e) -> e.getIdentifier().equalsIgnoreCase(optimise))
-                    .findFirst()
-                    .or(loader.stream()
-                            .map(ServiceLoader.Provider::get)
-                            .filter((e) -> e.getIdentifier().equalsIgnoreCase(optimise))
-                            ::findFirst)
-                    .orElseThrow(() -> new NoSuchElementException("optimisation '" + optimise + "' not found"));
-            
-            optimisations.push(optimisation);
-            var dependency = optimisation.getInput();
+            var pipeline = new ArrayList<PassManager.Pass>();
+            for (var name : optimise.split(",")) {
+                name = name.strip();
+                var repeat = name.endsWith("+");
+                var identifier = (repeat) ? name.substring(0, name.length() - 1) : name;
+                
+                var optimisation = find(extension_loader, loader, (e) -> e.getIdentifier().equalsIgnoreCase(identifier))
+                        .orElseThrow(() -> new NoSuchElementException("optimisation '" + identifier + "' not found"));
+                
+                pipeline.add(new PassManager.Pass(configure(optimisation), repeat));
+            }
             
+            // whatever it takes to get from brainfuck to what the first pass takes goes in front of it
+            var dependency = pipeline.getFirst().optimisation().getInput();
             while (dependency != BrainfuckInstruction.class) {
                 var final_dependency = dependency;
-                optimisation = extension_loader.stream()
-                        .map(ServiceLoader.Provider::get)
-                        .filter((e) -> e.getOutput().equals(final_dependency))
-                        .findFirst()
-                        .or(loader.stream()
-                                .map(ServiceLoader.Provider::get)
-                                .filter((e) -> e.getOutput().equals(final_dependency))
-                                ::findFirst)
-                        .orElseThrow(() -> new NoSuchElementException("optimisation " + optimise + "not found"));
+                var optimisation = find(extension_loader, loader, (e) -> e.getOutput().equals(final_dependency))
+                        .orElseThrow(() -> new NoSuchElementException("no optimisation outputs " + final_dependency.getSimpleName()));
                 
-                optimisations.push(optimisation);
+                pipeline.addFirst(new PassManager.Pass(configure(optimisation), false));
                 
                 dependency = optimisation.getInput();
-                
             }
             
+            return new PassManager(pipeline);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+    }
+    
+    // extensions get first dibs
+    @SuppressWarnings("rawtypes")
+    private static Optional<Optimisation<?, ?>> find(ServiceLoader<Optimisation> extension_loader, ServiceLoader<Optimisation> loader,
+                                                   Predicate<Optimisation<?, ?>> predicate) {
+        return extension_loader.stream()
+                .<Optimisation<?, ?>>map(ServiceLoader.Provider::get)
+                .filter(predicate)
+                .findFirst()
+                .or(loader.stream()
+                        .<Optimisation<?, ?>>map(ServiceLoader.Provider::get)
+                        .filter(predicate)
+                        ::findFirst);
+    }
+    
+    private Optimisation<?, ?> configure(Optimisation<?, ?> optimisation) {
+        optimisation = optimisation.forCellSize(cell_type.bits());
+        if (optimisation instanceof StateOptimisation state)
+            optimisation = state.budget(state_budget);
+        return optimisation;
+    }
+    
+    private ClassGenerator generator() {
+        var generator = new ClassGenerator()
+                .storage(storage)
+                .outputMode(output_mode)
+                .inputMode(input_mode)
+                .cellType(cell_type)
+                .tape(tape)
+                .methodSize(method_size)
+                .findZeroMode(find_zero_mode);
+        if (tape_size != null)
+            generator.tapeSize(tape_size);
+        if (tape_start != null)
+            generator.tapeStart(tape_start);
+        return generator;
+    }
+    
+    // something that walks a program, see withStackFor()
+    private interface Walk<T> {
+        T run() throws IOException;
+    }
+    
+    // runs walk on this thread if the program is nested shallow enough for it, otherwise on a thread with enough stack,
+    // depth is what depth() says about the program's source
+    private static <T> T withStackFor(int depth, Walk<T> walk) throws IOException {
+        if (depth <= SHALLOW_DEPTH)
+            return walk.run();
         
-        var classfile = ClassFile.of(ClassFile.DeadCodeOption.PATCH_DEAD_CODE);
-        
-        for (var input : input_paths) {
-            var instructions = optimise(read(input));
-            
-            if (write_instructions)
-                for (var instruction : instructions) {
-                    System.out.println(instruction);
-                }
-            
-            var data = classfile.build(ClassDesc.of(input.getFileName().toString().replace(".", "_")), (class_builder) -> {
-                
-                var self = ClassDesc.of(input.getFileName().toString().replace(".", "_"));
-                
-                var array = new Instruction.Array() {
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> load() {
-                        return (builder) -> builder
-                                .getstatic(self, "array", int[].class.describeConstable().orElseThrow());
-                    }
-                    
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> loadIndex(Instruction.Pointer pointer) {
-                        return (builder) -> builder
-                                .getstatic(self, "array", int[].class.describeConstable().orElseThrow())
-                                .block(pointer.load())
-                                .iaload();
-                    }
-                    
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> storeIndex(Instruction.Pointer pointer, Instruction.Value value) {
-                        return (builder) -> builder
-                                .getstatic(self, "array", int[].class.describeConstable().orElseThrow())                                .block(pointer.load())
-                                .block(value.load())
-                                .iastore();
-                    }
-                    
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> incIndex(Instruction.Pointer pointer, Instruction.Value amount) {
-                        return (builder) -> builder
-                                .getstatic(self, "array", int[].class.describeConstable().orElseThrow())                                .block(pointer.load())
-                                .dup2()
-                                .iaload()
-                                .block(amount.load())
-                                .iadd()
-                                .iastore();
-                    }
-                };
-                
-                var pointer = new Instruction.Pointer() {
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> load() {
-                        return (builder) -> builder
-                                .getstatic(self, "pointer", int.class.describeConstable().orElseThrow());
-                    }
-                    
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> store(Instruction.Value value) {
-                        return (builder) -> builder
-                                .block(value.load())
-                                .putstatic(self, "pointer", int.class.describeConstable().orElseThrow());                    }
-                    
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> inc(Instruction.Value amount) {
-                        return (builder) -> builder
-                                .block(amount.load())
-                                .getstatic(self, "pointer", int.class.describeConstable().orElseThrow())                                .iadd()
-                                .putstatic(self, "pointer", int.class.describeConstable().orElseThrow());
-                    }
-                    
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> inc(int amount) {
-                        return this.inc(() -> (builder) -> builder
-                                .loadConstant(amount));
-                    }
-                };
-                
-                var inputstream = new Instruction.Input() {
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> read() {
-                        return (builder) -> builder
-                                .invokevirtual(InputStream.class.describeConstable().orElseThrow(), "read",
-                                        MethodTypeDesc.ofDescriptor("()I"));
-                    }
-                    
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> load() {
-                        return (builder) -> builder
-                                .getstatic(System.class.describeConstable().orElseThrow(), "in",
-                                        InputStream.class.describeConstable().orElseThrow());
-                    }
-                };
-                var outputstream = new Instruction.Output() {
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> write() {
-                        return (builder) -> builder
-                                .invokevirtual(OutputStream.class.describeConstable().orElseThrow(), "write",
-                                        MethodTypeDesc.ofDescriptor("(I)V"));
-                    }
-                    
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> load() {
-                        return (builder) -> builder
-                                .getstatic(System.class.describeConstable().orElseThrow(), "out",
-                                        PrintStream.class.describeConstable().orElseThrow());
-                    }
-                };
-                
-                class_builder
-                        .withField("array", int[].class.describeConstable().orElseThrow(), ClassFile.ACC_STATIC)
-                        .withField("pointer", int.class.describeConstable().orElseThrow(), ClassFile.ACC_STATIC)
-                        .withMethod("main", MethodTypeDesc.ofDescriptor("([Ljava/lang/String;)V"), AccessFlag.STATIC.mask(), (method_builder) -> method_builder
-                                .withFlags(AccessFlag.PUBLIC, AccessFlag.STATIC)
-                                .withCode((code_builder) -> {
-                                    code_builder
-                                            .loadConstant(80_000)
-                                            .newarray(TypeKind.INT)
-                                            .putstatic(self, "array", int[].class.describeConstable().orElseThrow())
-                                            .loadConstant(40_000)
-                                            .putstatic(self, "pointer", int.class.describeConstable().orElseThrow());
-                                    for (var e : instructions) {
-                                        e.writeCode(code_builder, self, array, pointer, inputstream, outputstream);
-                                    }
-                                    code_builder
-                                            .return_();
-                                }));
-                for (var e : instructions) {
-                    e.writeClass(class_builder, self, array, pointer, inputstream, outputstream);
-                }
-            });
-            
-            var output_path = this.output_path.resolve(input.getFileName().toString().replace(".", "_") + ".class");
-            
-            try {
-                Files.write(output_path, data);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        var task = new FutureTask<>(walk::run);
+        try {
+            Thread.ofPlatform()
+                    .stackSize(depth * STACK_PER_LEVEL)
+                    .start(task)
+                    .join();
+            return task.get();
+        } catch (ExecutionException e) {
+            switch (e.getCause()) {
+                case IOException cause -> throw cause;
+                case RuntimeException cause -> throw cause;
+                case Error cause -> throw cause;
+                default -> throw new RuntimeException(e.getCause());
             }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
         }
     }
     
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-    private List<? extends Instruction> optimise(List<? extends Instruction> instructions) {
-        for (var e : optimisations) {
-            instructions = ((Optimisation) e).optimise(instructions);
+    // how deep the loops in source nest
+    private static int depth(byte[] source) {
+        var depth = 0;
+        var max = 0;
+        for (var b : source) {
+            if (b == '[')
+                max = Math.max(max, ++depth);
+            else if (b == ']')
+                depth--;
         }
-        return instructions;
+        return max;
     }
     
-    private List<? extends Instruction> read(Path path) {
-        try (var is = Files.newInputStream(path)) {
-            return BrainfuckInstruction.parse(is);
-        } catch (IOException e) {
-            throw new RuntimeException("failed to parse " + path, e);
-        }
+    private static String className(Path input) {
+        return input.getFileName().toString().replace(".", "_");
     }
     
     
     public static void main(String[] args) {
-        System.exit(new CommandLine(new Main()).execute(args));
+        System.exit(new CommandLine(new Main())
+                .setCaseInsensitiveEnumValuesAllowed(true)
+                .execute(args));
     }
 }
\ No newline at end of file
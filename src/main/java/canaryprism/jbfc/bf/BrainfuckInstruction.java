@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.classfile.CodeBuilder;
 import java.lang.constant.ClassDesc;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -19,26 +20,12 @@ public sealed interface BrainfuckInstruction extends Instruction {
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             switch (this) {
                 case INCREMENT -> code_builder
-                        .block(array.load())
-                        .block(pointer.load())
-                        .dup2()
-                        .iaload()
-                        .loadConstant(1)
-                        .iadd()
-                        .loadConstant(255)
-                        .iand()
-                        .iastore();
+                        .block(array.incIndex(pointer, () -> (builder) -> builder
+                                .loadConstant(1)));
                 
                 case DECREMENT -> code_builder
-                        .block(array.load())
-                        .block(pointer.load())
-                        .dup2()
-                        .iaload()
-                        .loadConstant(1)
-                        .isub()
-                        .loadConstant(255)
-                        .iand()
-                        .iastore();
+                        .block(array.incIndex(pointer, () -> (builder) -> builder
+                                .loadConstant(-1)));
                 
                 case LEFT -> code_builder
                         .block(pointer.inc(-1));
@@ -52,7 +39,7 @@ public sealed interface BrainfuckInstruction extends Instruction {
         }
     }
     
-    record LoopInstruction(List<BrainfuckInstruction> instructions) implements BrainfuckInstruction {
+    record LoopInstruction(List<BrainfuckInstruction> instructions) implements BrainfuckInstruction, Nested {
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
@@ -60,9 +47,7 @@ public sealed interface BrainfuckInstruction extends Instruction {
             var left_label = code_builder.newLabel();
             code_builder
                     .labelBinding(left_label)
-                    .block(array.load())
-                    .block(pointer.load())
-                    .iaload()
+                    .block(array.loadIndex(pointer))
                     .ifeq(right_label);
             
             for (var instruction : instructions) {
@@ -75,48 +60,51 @@ public sealed interface BrainfuckInstruction extends Instruction {
         }
     }
     
+    /**
+     * parses brainfuck source, ignoring anything that isn't an instruction
+     * <p>
+     * the stream gets read in big chunks so it doesn't need to be buffered, and loops are tracked with a stack
+     * instead of recursion so no amount of nesting overflows anything
+     *
+     * @throws IOException if the brackets don't match up (with the offset of the bad bracket) or reading fails
+     */
     static List<BrainfuckInstruction> parse(InputStream is) throws IOException {
-        return parse(is, false);
-    }
-    
-    private static List<BrainfuckInstruction> parse(InputStream is, boolean loop) throws IOException {
-        var list = new ArrayList<BrainfuckInstruction>();
+        // the loop being parsed right now and where its [ was
+        record Frame(List<BrainfuckInstruction> instructions, long offset) {}
         
-        int i;
+        var stack = new ArrayDeque<Frame>();
+        List<BrainfuckInstruction> list = new ArrayList<>();
         
-        read_loop: {
-            
-            while ((i = is.read()) != -1) {
-                var c = ((char) i);
-                
-                if (c == ']') {
-                    if (!loop)
-                        throw new IOException("extra unbalanced ] found");
-                    break read_loop;
+        var buffer = new byte[1 << 16];
+        var offset = 0L;
+        int length;
+        while ((length = is.read(buffer)) != -1) {
+            for (int i = 0; i < length; i++, offset++) {
+                switch (buffer[i]) {
+                    case '+' -> list.add(BasicInstruction.INCREMENT);
+                    case '-' -> list.add(BasicInstruction.DECREMENT);
+                    case '>' -> list.add(BasicInstruction.RIGHT);
+                    case '<' -> list.add(BasicInstruction.LEFT);
+                    case ',' -> list.add(BasicInstruction.READ);
+                    case '.' -> list.add(BasicInstruction.WRITE);
+                    case '[' -> {
+                        stack.push(new Frame(list, offset));
+                        list = new ArrayList<>();
+                    }
+                    case ']' -> {
+                        if (stack.isEmpty())
+                            throw new IOException("unbalanced ] at byte " + offset);
+                        var loop = new LoopInstruction(list);
+                        list = stack.pop().instructions();
+                        list.add(loop);
+                    }
+                    default -> {}
                 }
-
-                var instruction = switch (c) {
-                    case '+' -> BasicInstruction.INCREMENT;
-                    case '-' -> BasicInstruction.DECREMENT;
-                    case '>' -> BasicInstruction.RIGHT;
-                    case '<' -> BasicInstruction.LEFT;
-                    case ',' -> BasicInstruction.READ;
-                    case '.' -> BasicInstruction.WRITE;
-                    case '[' -> new LoopInstruction(parse(is, true));
-                    default -> null;
-                };
-                
-                if (instruction == null)
-                    continue;
-                
-                list.add(instruction);
             }
-            
-            if (loop)
-                throw new IOException("expected ], found end of stream");
-                
         }
         
+        if (!stack.isEmpty())
+            throw new IOException("unbalanced [ at byte " + stack.peek().offset() + ", found end of stream");
         
         return list;
     }
@@ -0,0 +1,95 @@
+package canaryprism.jbfc.cache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+
+// class files on disk under a hash of everything that went into compiling them, so a file that hasn't changed
+// (and isn't being compiled any differently) never gets parsed, optimised or generated again
+//
+// nothing ever gets evicted, it's just a directory so delete it whenever
+public final class CompilationCache {
+    
+    private final Path directory;
+    
+    public CompilationCache(Path directory) {
+        this.directory = directory;
+    }
+    
+    public Optional<byte[]> get(String key) throws IOException {
+        try {
+            return Optional.of(Files.readAllBytes(path(key)));
+        } catch (NoSuchFileException _) {
+            return Optional.empty();
+        }
+    }
+    
+    public void put(String key, byte[] data) throws IOException {
+        var path = path(key);
+        Files.createDirectories(path.getParent());
+        // written somewhere else first so another jbfc reading the same key never sees half a class
+        var temporary = Files.createTempFile(path.getParent(), key, ".tmp");
+        try {
+            Files.write(temporary, data);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+    
+    // split up by the first 2 characters so no one directory ends up with every class in it
+    private Path path(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key.substring(2) + ".class");
+    }
+    
+    /**
+     * combines the string forms of the given parts into one key, parts are separated so moving text from one part
+     * to the next changes the key
+     */
+    public static String key(List<?> parts) {
+        var digest = digest();
+        for (var part : parts) {
+            digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+    
+    public static String hash(byte[] data) {
+        return HexFormat.of().formatHex(digest().digest(data));
+    }
+    
+    /**
+     * hashes the contents of a file, or of every file in a directory along with where it is in there
+     */
+    public static String hash(Path path) throws IOException {
+        if (!Files.isDirectory(path))
+            return hash(Files.readAllBytes(path));
+        
+        try (var files = Files.walk(path)) {
+            var digest = digest();
+            for (var file : files.filter(Files::isRegularFile).sorted().toList()) {
+                digest.update(path.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(Files.readAllBytes(file));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        }
+    }
+    
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package canaryprism.jbfc.codegen;
+
+import canaryprism.jbfc.Instruction;
+
+import java.lang.classfile.ClassBuilder;
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.TypeKind;
+import java.lang.constant.ClassDesc;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+// a run of Straight instructions that share one set of cached cells (see Instruction.Cells), a cell gets loaded the
+// first time one of them needs it and stored once at the end, or before one of them needs the tape to be up to date
+record Block(List<Instruction.Straight> instructions) implements Instruction {
+    
+    // capped so MethodSplitter still has somewhere to cut a long run of straight line code
+    private static final int MAX_SIZE = 64;
+    
+    // puts every run of Straight instructions longer than 1 into a Block
+    static List<Instruction> group(List<? extends Instruction> instructions) {
+        var list = new ArrayList<Instruction>(instructions.size());
+        var run = new ArrayList<Instruction.Straight>();
+        for (var instruction : instructions) {
+            if (instruction instanceof Instruction.Straight straight) {
+                run.add(straight);
+                if (run.size() == MAX_SIZE)
+                    end(run, list);
+            } else {
+                end(run, list);
+                list.add(instruction);
+            }
+        }
+        end(run, list);
+        return list;
+    }
+    
+    private static void end(List<Instruction.Straight> run, List<Instruction> list) {
+        if (run.size() == 1)
+            list.add(run.getFirst());
+        else if (run.size() > 1)
+            list.add(new Block(List.copyOf(run)));
+        run.clear();
+    }
+    
+    @Override
+    public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+        code_builder.block((block_builder) -> {
+            var cells = new CachedCells(block_builder, array, pointer);
+            for (var instruction : instructions) {
+                instruction.writeCode(block_builder, self, array, cells, input, output);
+            }
+            cells.end();
+        });
+    }
+    
+    @Override
+    public void writeClass(ClassBuilder class_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+        for (var instruction : instructions) {
+            instruction.writeClass(class_builder, self, array, pointer, input, output);
+        }
+    }
+    
+    // everything in here is relative to where the pointer really is, position is where the instructions think it is
+    private static final class CachedCells implements Instruction.Cells {
+        
+        private final CodeBuilder builder;
+        private final Array array;
+        private final Pointer pointer;
+        
+        private final Map<Integer, Integer> locals = new HashMap<>();
+        private final TreeSet<Integer> dirty = new TreeSet<>();
+        
+        private int position = 0;
+        
+        // the cells on either side of the pointer that are known to exist, the tape is in one piece so so is everything
+        // in between
+        private int low = 0;
+        private int high = 0;
+        
+        CachedCells(CodeBuilder builder, Array array, Pointer pointer) {
+            this.builder = builder;
+            this.array = array;
+            this.pointer = pointer;
+        }
+        
+        @Override
+        public int load(int offset) {
+            var cell = position + offset;
+            var local = locals.get(cell);
+            if (local == null) {
+                local = builder.allocateLocal(TypeKind.INT);
+                builder
+                        .block(array.loadIndex(at(cell)))
+                        .istore(local);
+                locals.put(cell, local);
+            }
+            return local;
+        }
+        
+        @Override
+        public int overwrite(int offset) {
+            var cell = position + offset;
+            ensure(cell, cell);
+            dirty.add(cell);
+            return locals.computeIfAbsent(cell, (_) -> builder.allocateLocal(TypeKind.INT));
+        }
+        
+        @Override
+        public void add(int offset, Consumer<CodeBuilder.BlockCodeBuilder> amount) {
+            var local = load(offset);
+            dirty.add(position + offset);
+            builder
+                    .iload(local)
+                    .block(amount)
+                    .iadd()
+                    .istore(local);
+        }
+        
+        @Override
+        public void move(int amount) {
+            position += amount;
+        }
+        
+        @Override
+        public void reserve(int low, int high) {
+            ensure(position + low, position + high);
+        }
+        
+        @Override
+        public Pointer sync(int offset) {
+            var cell = position + offset;
+            store(cell);
+            return at(cell);
+        }
+        
+        @Override
+        public Pointer discard(int offset) {
+            var cell = position + offset;
+            dirty.remove(cell);
+            locals.remove(cell);
+            return at(cell);
+        }
+        
+        void end() {
+            for (var cell : List.copyOf(dirty)) {
+                store(cell);
+            }
+            if (position != 0)
+                builder
+                        .block(pointer.inc(position));
+        }
+        
+        private void store(int cell) {
+            if (dirty.remove(cell)) {
+                var local = locals.get(cell);
+                builder
+                        .block(array.storeIndex(pointer.offset(cell), () -> (b) -> b
+                                .iload(local)));
+            }
+        }
+        
+        private Pointer at(int cell) {
+            ensure(cell, cell);
+            return pointer.offset(cell);
+        }
+        
+        // only the side that grew needs checking
+        private void ensure(int low, int high) {
+            if (low < this.low) {
+                builder
+                        .block(pointer.reserve(low, 0));
+                this.low = low;
+            }
+            if (high > this.high) {
+                builder
+                        .block(pointer.reserve(0, high));
+                this.high = high;
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package canaryprism.jbfc.codegen;
+
+import canaryprism.jbfc.Instruction;
+
+import java.lang.classfile.CodeBuilder;
+import java.lang.constant.ClassDesc;
+
+// what an Outlined instruction gets replaced with when a method with its name was already written for another one
+record Call(String name) implements Instruction.Outlined {
+    
+    @Override
+    public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+        code_builder
+                .block(pointer.invoke(self, name));
+    }
+}
@@ -0,0 +1,41 @@
+package canaryprism.jbfc.codegen;
+
+import canaryprism.jbfc.Instruction;
+
+import java.lang.classfile.ClassBuilder;
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.CodeBuilder;
+import java.lang.constant.ClassDesc;
+import java.util.List;
+
+// a run of straight line instructions moved into a method of its own
+record Chunk(List<? extends Instruction> instructions, String name) implements Instruction.Outlined {
+    
+    Chunk(List<? extends Instruction> instructions) {
+        this(instructions, Instruction.methodName("chunk", instructions));
+    }
+    
+    @Override
+    public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+        code_builder
+                .block(pointer.invoke(self, name));
+    }
+    
+    @Override
+    public void writeClass(ClassBuilder class_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+        class_builder
+                .withMethod(name, pointer.methodType(), ClassFile.ACC_STATIC, (method_builder) -> method_builder
+                        .withCode((code_builder) -> {
+                            for (var instruction : instructions) {
+                                instruction.writeCode(code_builder, self, array, pointer, input, output);
+                            }
+                            
+                            code_builder
+                                    .block(pointer.return_());
+                        }));
+        
+        for (var instruction : instructions) {
+            instruction.writeClass(class_builder, self, array, pointer, input, output);
+        }
+    }
+}
@@ -0,0 +1,1207 @@
+package canaryprism.jbfc.codegen;
+
+import canaryprism.jbfc.Instruction;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.classfile.ClassBuilder;
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.TypeKind;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDescs;
+import java.lang.constant.MethodTypeDesc;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.AccessFlag;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.function.Consumer;
+
+public final class ClassGenerator {
+    
+    public enum Storage {
+        /**
+         * the array and pointer live in static fields of the generated class
+         */
+        STATIC,
+        /**
+         * the array and pointer live in local variables and get passed to and returned from outlined methods
+         */
+        LOCAL
+    }
+    
+    public enum OutputMode {
+        /**
+         * every write goes straight to {@code System.out}
+         */
+        DIRECT,
+        /**
+         * writes go to a buffer in the generated class that is written to stdout without synchronisation
+         * when it's full, before input is read and when the program exits
+         */
+        BUFFERED
+    }
+    
+    public enum CellType {
+        /**
+         * 8 bit cells in an {@code int[]} that get masked after every change
+         */
+        MASKED_INT(8, TypeKind.INT),
+        /**
+         * 8 bit cells in a {@code byte[]}, wrapping around is free when the value gets narrowed
+         */
+        BYTE(8, TypeKind.BYTE),
+        /**
+         * 16 bit cells in a {@code char[]}
+         */
+        CHAR(16, TypeKind.CHAR),
+        /**
+         * 32 bit cells in an {@code int[]}
+         */
+        INT(32, TypeKind.INT);
+        
+        private final int bits;
+        private final TypeKind kind;
+        
+        CellType(int bits, TypeKind kind) {
+            this.bits = bits;
+            this.kind = kind;
+        }
+        
+        public int bits() {
+            return bits;
+        }
+        
+        ClassDesc arrayType() {
+            return kind.upperBound().arrayType();
+        }
+    }
+    
+    public enum Tape {
+        /**
+         * the tape is allocated once and never changes size, walking off either end crashes the program
+         */
+        FIXED(80_000),
+        /**
+         * the tape starts small and grows when the pointer walks off either end of it,
+         * moving the pointer costs a bounds check
+         */
+        GROWABLE(1 << 12);
+        
+        private final int default_size;
+        
+        Tape(int default_size) {
+            this.default_size = default_size;
+        }
+        
+        public int defaultSize() {
+            return default_size;
+        }
+    }
+    
+    public enum FindZeroMode {
+        /**
+         * every step of the scan is a load, a compare and a pointer update
+         */
+        LOOP,
+        /**
+         * scans call a helper in the generated class that keeps everything in locals,
+         * on {@code byte[]} tapes scans with a step of 1 or -1 check 8 cells at a time
+         */
+        HELPER
+    }
+    
+    public enum InputMode {
+        /**
+         * every read calls {@code System.in.read()}
+         */
+        DIRECT,
+        /**
+         * reads are served from a buffer in the generated class that is refilled from stdin in bulk
+         */
+        BUFFERED,
+        /**
+         * the generated program memory maps the file given as its first argument and reads from that instead of stdin
+         */
+        MAPPED
+    }
+    
+    // in LOCAL storage every method keeps the array and pointer in these slots,
+    // outlined methods get them as their parameters and main reuses the slot of its (unused) args for the array
+    private static final int ARRAY_SLOT = 0;
+    private static final int POINTER_SLOT = 1;
+    
+    /**
+     * the default for {@link #methodSize(int)}, comfortably under HotSpot's HugeMethodLimit of 8000 bytes
+     */
+    public static final int DEFAULT_METHOD_SIZE = 4000;
+    
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+    private static final int INPUT_BUFFER_SIZE = 1 << 16;
+    
+    private static final ClassDesc CD_FileOutputStream = FileOutputStream.class.describeConstable().orElseThrow();
+    private static final ClassDesc CD_FileInputStream = FileInputStream.class.describeConstable().orElseThrow();
+    private static final ClassDesc CD_MemorySegment = MemorySegment.class.describeConstable().orElseThrow();
+    
+    private final ClassFile classfile = ClassFile.of(ClassFile.DeadCodeOption.PATCH_DEAD_CODE);
+    
+    private Storage storage = Storage.STATIC;
+    private OutputMode output_mode = OutputMode.BUFFERED;
+    private InputMode input_mode = InputMode.BUFFERED;
+    private CellType cell_type = CellType.MASKED_INT;
+    private Tape tape = Tape.FIXED;
+    private OptionalInt tape_size = OptionalInt.empty();
+    private OptionalInt tape_start = OptionalInt.empty();
+    private int method_size = DEFAULT_METHOD_SIZE;
+    private FindZeroMode find_zero_mode = FindZeroMode.LOOP;
+    
+    public ClassGenerator storage(Storage storage) {
+        this.storage = storage;
+        return this;
+    }
+    
+    public ClassGenerator outputMode(OutputMode output_mode) {
+        this.output_mode = output_mode;
+        return this;
+    }
+    
+    public ClassGenerator inputMode(InputMode input_mode) {
+        this.input_mode = input_mode;
+        return this;
+    }
+    
+    public ClassGenerator cellType(CellType cell_type) {
+        this.cell_type = cell_type;
+        return this;
+    }
+    
+    public ClassGenerator tape(Tape tape) {
+        this.tape = tape;
+        return this;
+    }
+    
+    public ClassGenerator tapeSize(int tape_size) {
+        if (tape_size <= 0)
+            throw new IllegalArgumentException("tape size must be positive");
+        this.tape_size = OptionalInt.of(tape_size);
+        return this;
+    }
+    
+    /**
+     * where the pointer starts on the tape, defaults to the middle
+     */
+    public ClassGenerator tapeStart(int tape_start) {
+        this.tape_start = OptionalInt.of(tape_start);
+        return this;
+    }
+    
+    /**
+     * roughly how many bytes of bytecode a generated method may have before its instructions get split into other methods
+     */
+    public ClassGenerator methodSize(int method_size) {
+        if (method_size <= 0)
+            throw new IllegalArgumentException("method size must be positive");
+        this.method_size = method_size;
+        return this;
+    }
+    
+    public ClassGenerator findZeroMode(FindZeroMode find_zero_mode) {
+        this.find_zero_mode = find_zero_mode;
+        return this;
+    }
+    
+    public byte[] generate(ClassDesc self, List<? extends Instruction> program) {
+        var size = tape_size.orElse(tape.defaultSize());
+        var start = tape_start.orElse(size / 2);
+        if (start < 0 || start >= size)
+            throw new IllegalArgumentException("tape start " + start + " is outside a tape of " + size + " cells");
+        
+        return classfile.build(self, (class_builder) -> {
+            
+            var array = array(self);
+            var pointer = switch (tape) {
+                case FIXED -> pointer(self);
+                case GROWABLE -> growable(self, array, pointer(self));
+            };
+            var inputstream = input(self);
+            var outputstream = output(self);
+            
+            var instructions = new MethodSplitter(classfile, method_size, self, array, pointer, inputstream, outputstream)
+                    .split(program);
+            
+            // growing the tape always goes through the field, even in LOCAL storage
+            if (storage == Storage.STATIC || tape == Tape.GROWABLE)
+                class_builder
+                        .withField("array", cell_type.arrayType(), ClassFile.ACC_STATIC);
+            if (storage == Storage.STATIC)
+                class_builder
+                        .withField("pointer", int.class.describeConstable().orElseThrow(), ClassFile.ACC_STATIC);
+            if (tape == Tape.GROWABLE)
+                writeGrow(class_builder, self);
+            if (find_zero_mode == FindZeroMode.HELPER)
+                writeFindZero(class_builder, self);
+            
+            if (output_mode == OutputMode.BUFFERED)
+                writeOutputBuffer(class_builder, self);
+            switch (input_mode) {
+                case DIRECT -> {}
+                case BUFFERED -> writeInputBuffer(class_builder, self);
+                case MAPPED -> writeInputMapping(class_builder, self);
+            }
+            
+            class_builder
+                    .withMethod("main", MethodTypeDesc.ofDescriptor("([Ljava/lang/String;)V"), AccessFlag.STATIC.mask(), (method_builder) -> method_builder
+                            .withFlags(AccessFlag.PUBLIC, AccessFlag.STATIC)
+                            .withCode((code_builder) -> {
+                                // this has to happen first since LOCAL storage reuses the slot of args
+                                switch (input_mode) {
+                                    case DIRECT -> {}
+                                    case BUFFERED -> code_builder
+                                            .new_(CD_FileInputStream)
+                                            .dup()
+                                            .getstatic(FileDescriptor.class.describeConstable().orElseThrow(), "in",
+                                                    FileDescriptor.class.describeConstable().orElseThrow())
+                                            .invokespecial(CD_FileInputStream, "<init>", MethodTypeDesc.ofDescriptor("(Ljava/io/FileDescriptor;)V"))
+                                            .putstatic(self, "stdin", CD_FileInputStream)
+                                            .loadConstant(INPUT_BUFFER_SIZE)
+                                            .newarray(TypeKind.BYTE)
+                                            .putstatic(self, "input_buffer", byte[].class.describeConstable().orElseThrow());
+                                    case MAPPED -> {
+                                        var has_input = code_builder.newLabel();
+                                        var cd_exception = IllegalArgumentException.class.describeConstable().orElseThrow();
+                                        code_builder
+                                                .aload(0)
+                                                .arraylength()
+                                                .ifne(has_input)
+                                                .new_(cd_exception)
+                                                .dup()
+                                                .loadConstant("missing the input file, this program was compiled with --input-mode mapped "
+                                                        + "so it reads its input from the file given as its first argument")
+                                                .invokespecial(cd_exception, ConstantDescs.INIT_NAME, MethodTypeDesc.ofDescriptor("(Ljava/lang/String;)V"))
+                                                .athrow()
+                                                .labelBinding(has_input)
+                                                .aload(0)
+                                                .loadConstant(0)
+                                                .aaload()
+                                                .invokestatic(self, "map", MethodTypeDesc.ofDescriptor("(Ljava/lang/String;)V"));
+                                    }
+                                }
+                                if (output_mode == OutputMode.BUFFERED)
+                                    code_builder
+                                            .new_(CD_FileOutputStream)
+                                            .dup()
+                                            .getstatic(FileDescriptor.class.describeConstable().orElseThrow(), "out",
+                                                    FileDescriptor.class.describeConstable().orElseThrow())
+                                            .invokespecial(CD_FileOutputStream, "<init>", MethodTypeDesc.ofDescriptor("(Ljava/io/FileDescriptor;)V"))
+                                            .putstatic(self, "stdout", CD_FileOutputStream)
+                                            .loadConstant(OUTPUT_BUFFER_SIZE)
+                                            .newarray(TypeKind.BYTE)
+                                            .putstatic(self, "output_buffer", byte[].class.describeConstable().orElseThrow());
+                                code_builder
+                                        .loadConstant(size)
+                                        .newarray(cell_type.kind);
+                                switch (storage) {
+                                    case STATIC -> code_builder
+                                            .putstatic(self, "array", cell_type.arrayType())
+                                            .loadConstant(start)
+                                            .putstatic(self, "pointer", int.class.describeConstable().orElseThrow());
+                                    case LOCAL -> {
+                                        // claim the pointer slot so instructions allocating locals in main don't clobber it
+                                        code_builder.allocateLocal(TypeKind.INT);
+                                        if (tape == Tape.GROWABLE)
+                                            code_builder
+                                                    .dup()
+                                                    .putstatic(self, "array", cell_type.arrayType());
+                                        code_builder
+                                                .astore(ARRAY_SLOT)
+                                                .loadConstant(start)
+                                                .istore(POINTER_SLOT);
+                                    }
+                                }
+                                // whatever's still in the output buffer has to come out even if the program throws,
+                                // like when it runs off a fixed tape
+                                var body_start = code_builder.newLabel();
+                                var body_end = code_builder.newLabel();
+                                code_builder
+                                        .labelBinding(body_start);
+                                for (var e : instructions) {
+                                    e.writeCode(code_builder, self, array, pointer, inputstream, outputstream);
+                                }
+                                code_builder
+                                        .labelBinding(body_end)
+                                        .block(outputstream.flush())
+                                        .return_();
+                                // (a handler can't cover no code at all)
+                                if (output_mode == OutputMode.BUFFERED && !instructions.isEmpty()) {
+                                    var handler = code_builder.newLabel();
+                                    code_builder
+                                            .labelBinding(handler)
+                                            .block(outputstream.flush())
+                                            .athrow()
+                                            .exceptionCatchAll(body_start, body_end, handler);
+                                }
+                            }));
+            for (var e : instructions) {
+                e.writeClass(class_builder, self, array, pointer, inputstream, outputstream);
+            }
+        });
+    }
+    
+    // writes a class with one public static method called name that runs instructions on an array and pointer passed in
+    // and returns where the pointer ended up, so code outside the class can own the tape (see TieredEngine)
+    // there's no main to set anything up so this needs LOCAL storage, a FIXED tape and DIRECT input and output
+    public byte[] generateMethod(ClassDesc self, String name, List<? extends Instruction> body) {
+        if (storage != Storage.LOCAL || tape != Tape.FIXED || input_mode != InputMode.DIRECT || output_mode != OutputMode.DIRECT)
+            throw new IllegalStateException("generateMethod needs LOCAL storage, a FIXED tape and DIRECT input and output");
+        
+        return classfile.build(self, (class_builder) -> {
+            
+            var array = array(self);
+            var pointer = pointer(self);
+            var inputstream = input(self);
+            var outputstream = output(self);
+            
+            var instructions = new MethodSplitter(classfile, method_size, self, array, pointer, inputstream, outputstream)
+                    .split(body);
+            
+            if (find_zero_mode == FindZeroMode.HELPER)
+                writeFindZero(class_builder, self);
+            
+            class_builder
+                    .withMethodBody(name, pointer.methodType(), ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, (code_builder) -> {
+                        for (var e : instructions) {
+                            e.writeCode(code_builder, self, array, pointer, inputstream, outputstream);
+                        }
+                        code_builder
+                                .block(pointer.return_());
+                    });
+            for (var e : instructions) {
+                e.writeClass(class_builder, self, array, pointer, inputstream, outputstream);
+            }
+        });
+    }
+    
+    private Instruction.Array array(ClassDesc self) {
+        return new Instruction.Array() {
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                return switch (storage) {
+                    case STATIC -> (builder) -> builder
+                            .getstatic(self, "array", cell_type.arrayType());
+                    case LOCAL -> (builder) -> builder
+                            .aload(ARRAY_SLOT);
+                };
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> loadIndex(Instruction.Pointer pointer) {
+                return (builder) -> builder
+                        .block(load())
+                        .block(pointer.load())
+                        .arrayLoad(cell_type.kind);
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> storeIndex(Instruction.Pointer pointer, Instruction.Value value) {
+                return (builder) -> builder
+                        .block(load())
+                        .block(pointer.load())
+                        .block(value.load())
+                        .block(wrap())
+                        .arrayStore(cell_type.kind);
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> incIndex(Instruction.Pointer pointer, Instruction.Value amount) {
+                return (builder) -> builder
+                        .block(load())
+                        .block(pointer.load())
+                        .dup2()
+                        .arrayLoad(cell_type.kind)
+                        .block(amount.load())
+                        .iadd()
+                        .block(wrap())
+                        .arrayStore(cell_type.kind);
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> findZero(Instruction.Pointer pointer, int step) {
+                if (find_zero_mode == FindZeroMode.LOOP)
+                    return Instruction.Array.super.findZero(pointer, step);
+                // the helpers return the first index off the end of the tape if there's no 0 before it,
+                // a growable tape grows there
+                if (step != 1 && step != -1)
+                    return pointer.store(() -> (builder) -> builder
+                            .block(load())
+                            .block(pointer.load())
+                            .loadConstant(step)
+                            .invokestatic(self, "findZeroStrided",
+                                    MethodTypeDesc.of(ConstantDescs.CD_int, cell_type.arrayType(), ConstantDescs.CD_int, ConstantDescs.CD_int)));
+                return pointer.store(() -> (builder) -> builder
+                        .block(load())
+                        .block(pointer.load())
+                        .invokestatic(self, (step == 1) ? "findZero" : "findZeroBackwards",
+                                MethodTypeDesc.of(ConstantDescs.CD_int, cell_type.arrayType(), ConstantDescs.CD_int)));
+            }
+            
+            // only MASKED_INT needs to do anything, the others wrap around when the value is narrowed on store
+            private Consumer<CodeBuilder.BlockCodeBuilder> wrap() {
+                return switch (cell_type) {
+                    case MASKED_INT -> (builder) -> builder
+                            .loadConstant(255)
+                            .iand();
+                    case BYTE, CHAR, INT -> (_) -> {};
+                };
+            }
+        };
+    }
+    
+    private Instruction.Pointer pointer(ClassDesc self) {
+        return switch (storage) {
+            case STATIC -> new Instruction.Pointer() {
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                    return (builder) -> builder
+                            .getstatic(self, "pointer", int.class.describeConstable().orElseThrow());
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> store(Instruction.Value value) {
+                    return (builder) -> builder
+                            .block(value.load())
+                            .putstatic(self, "pointer", int.class.describeConstable().orElseThrow());
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> inc(Instruction.Value amount) {
+                    return (builder) -> builder
+                            .block(amount.load())
+                            .getstatic(self, "pointer", int.class.describeConstable().orElseThrow())
+                            .iadd()
+                            .putstatic(self, "pointer", int.class.describeConstable().orElseThrow());
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> inc(int amount) {
+                    return this.inc(() -> (builder) -> builder
+                            .loadConstant(amount));
+                }
+            };
+            case LOCAL -> new Instruction.Pointer() {
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                    return (builder) -> builder
+                            .iload(POINTER_SLOT);
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> store(Instruction.Value value) {
+                    return (builder) -> builder
+                            .block(value.load())
+                            .istore(POINTER_SLOT);
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> inc(Instruction.Value amount) {
+                    return (builder) -> builder
+                            .block(amount.load())
+                            .iload(POINTER_SLOT)
+                            .iadd()
+                            .istore(POINTER_SLOT);
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> inc(int amount) {
+                    if (amount < Short.MIN_VALUE || amount > Short.MAX_VALUE)
+                        return this.inc(() -> (builder) -> builder
+                                .loadConstant(amount));
+                    return (builder) -> builder
+                            .iinc(POINTER_SLOT, amount);
+                }
+                
+                @Override
+                public MethodTypeDesc methodType() {
+                    return MethodTypeDesc.of(ConstantDescs.CD_int, cell_type.arrayType(), ConstantDescs.CD_int);
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> invoke(ClassDesc owner, String name) {
+                    return (builder) -> builder
+                            .aload(ARRAY_SLOT)
+                            .iload(POINTER_SLOT)
+                            .invokestatic(owner, name, methodType())
+                            .istore(POINTER_SLOT);
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> return_() {
+                    return (builder) -> builder
+                            .iload(POINTER_SLOT)
+                            .ireturn();
+                }
+            };
+        };
+    }
+    
+    // checks the bounds of the tape whenever the pointer moves or reserves cells, and calls grow(III)I when they're crossed
+    private Instruction.Pointer growable(ClassDesc self, Instruction.Array array, Instruction.Pointer pointer) {
+        return new Instruction.Pointer() {
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                return pointer.load();
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> store(Instruction.Value value) {
+                return (builder) -> builder
+                        .block(pointer.store(value))
+                        .block(ensure(0, 0, true, true));
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> inc(Instruction.Value amount) {
+                return (builder) -> builder
+                        .block(pointer.inc(amount))
+                        .block(ensure(0, 0, true, true));
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> inc(int amount) {
+                // the pointer was in bounds before so only the side we're moving towards needs checking
+                return (builder) -> builder
+                        .block(pointer.inc(amount))
+                        .block(ensure(0, 0, amount < 0, amount > 0));
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> reserve(int low, int high) {
+                return ensure(low, high, low < 0, high > 0);
+            }
+            
+            @Override
+            public MethodTypeDesc methodType() {
+                return pointer.methodType();
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> invoke(ClassDesc owner, String name) {
+                return (builder) -> {
+                    builder
+                            .block(pointer.invoke(owner, name));
+                    // the tape might have grown in there
+                    if (storage == Storage.LOCAL)
+                        builder
+                                .getstatic(self, "array", cell_type.arrayType())
+                                .astore(ARRAY_SLOT);
+                };
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> return_() {
+                return pointer.return_();
+            }
+            
+            private Consumer<CodeBuilder.BlockCodeBuilder> ensure(int low, int high, boolean check_low, boolean check_high) {
+                if (!check_low && !check_high)
+                    return (_) -> {};
+                return (builder) -> {
+                    var grow = builder.newLabel();
+                    var in_bounds = builder.newLabel();
+                    if (check_low)
+                        builder
+                                .block(pointer.offset(low).load())
+                                .iflt(grow);
+                    if (check_high)
+                        builder
+                                .block(pointer.offset(high).load())
+                                .block(array.load())
+                                .arraylength()
+                                .if_icmplt(in_bounds);
+                    else
+                        builder
+                                .goto_(in_bounds);
+                    builder
+                            .labelBinding(grow)
+                            .block(pointer.store(() -> (b) -> b
+                                    .block(pointer.load())
+                                    .loadConstant(low)
+                                    .loadConstant(high)
+                                    .invokestatic(self, "grow", MethodTypeDesc.ofDescriptor("(III)I"))));
+                    if (storage == Storage.LOCAL)
+                        builder
+                                .getstatic(self, "array", cell_type.arrayType())
+                                .astore(ARRAY_SLOT);
+                    builder
+                            .labelBinding(in_bounds);
+                };
+            }
+        };
+    }
+    
+    private Instruction.Input input(ClassDesc self) {
+        return switch (input_mode) {
+            case DIRECT -> new Instruction.Input() {
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> read() {
+                    return (builder) -> {
+                        // whatever was written so far has to be visible before we block on input
+                        if (output_mode == OutputMode.BUFFERED)
+                            builder
+                                    .invokestatic(self, "flush", MethodTypeDesc.ofDescriptor("()V"));
+                        builder
+                                .invokevirtual(InputStream.class.describeConstable().orElseThrow(), "read",
+                                        MethodTypeDesc.ofDescriptor("()I"));
+                    };
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                    return (builder) -> builder
+                            .getstatic(System.class.describeConstable().orElseThrow(), "in",
+                                    InputStream.class.describeConstable().orElseThrow());
+                }
+            };
+            case BUFFERED, MAPPED -> new Instruction.Input() {
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> read() {
+                    return (builder) -> builder
+                            .invokestatic(self, "read", MethodTypeDesc.ofDescriptor("()I"));
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                    return (_) -> {};
+                }
+            };
+        };
+    }
+    
+    private Instruction.Output output(ClassDesc self) {
+        return switch (output_mode) {
+            case DIRECT -> new Instruction.Output() {
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> write() {
+                    return (builder) -> builder
+                            .invokevirtual(OutputStream.class.describeConstable().orElseThrow(), "write",
+                                    MethodTypeDesc.ofDescriptor("(I)V"));
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                    return (builder) -> builder
+                            .getstatic(System.class.describeConstable().orElseThrow(), "out",
+                                    PrintStream.class.describeConstable().orElseThrow());
+                }
+            };
+            case BUFFERED -> new Instruction.Output() {
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> write() {
+                    return (builder) -> builder
+                            .invokestatic(self, "write", MethodTypeDesc.ofDescriptor("(I)V"));
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> writeBytes() {
+                    return (builder) -> builder
+                            .invokestatic(self, "write", MethodTypeDesc.ofDescriptor("([BII)V"));
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> flush() {
+                    return (builder) -> builder
+                            .invokestatic(self, "flush", MethodTypeDesc.ofDescriptor("()V"));
+                }
+                
+                @Override
+                public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                    // everything lives in static fields of the generated class
+                    return (_) -> {};
+                }
+            };
+        };
+    }
+    
+    // emits the fields and the write(I)V, write([BII)V and flush()V methods
+    // that back OutputMode.BUFFERED
+    private void writeOutputBuffer(ClassBuilder class_builder, ClassDesc self) {
+        var cd_buffer = byte[].class.describeConstable().orElseThrow();
+        var cd_int = int.class.describeConstable().orElseThrow();
+        var write_bytes = MethodTypeDesc.ofDescriptor("([BII)V");
+        var flush = MethodTypeDesc.ofDescriptor("()V");
+        
+        class_builder
+                .withField("stdout", CD_FileOutputStream, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE)
+                .withField("output_buffer", cd_buffer, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE)
+                .withField("output_length", cd_int, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE)
+                .withMethodBody("flush", flush, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE, (code_builder) -> code_builder
+                        .getstatic(self, "stdout", CD_FileOutputStream)
+                        .getstatic(self, "output_buffer", cd_buffer)
+                        .loadConstant(0)
+                        .getstatic(self, "output_length", cd_int)
+                        .invokevirtual(CD_FileOutputStream, "write", write_bytes)
+                        .loadConstant(0)
+                        .putstatic(self, "output_length", cd_int)
+                        .return_())
+                .withMethodBody("write", MethodTypeDesc.ofDescriptor("(I)V"), ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE, (code_builder) -> {
+                    var has_space = code_builder.newLabel();
+                    code_builder
+                            .getstatic(self, "output_length", cd_int)
+                            .getstatic(self, "output_buffer", cd_buffer)
+                            .arraylength()
+                            .if_icmplt(has_space)
+                            .invokestatic(self, "flush", flush)
+                            .labelBinding(has_space)
+                            .getstatic(self, "output_buffer", cd_buffer)
+                            .getstatic(self, "output_length", cd_int)
+                            .iload(0)
+                            .bastore()
+                            .getstatic(self, "output_length", cd_int)
+                            .loadConstant(1)
+                            .iadd()
+                            .putstatic(self, "output_length", cd_int)
+                            .return_();
+                })
+                .withMethodBody("write", write_bytes, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE, (code_builder) -> {
+                    // (bytes, offset, length)
+                    var fits = code_builder.newLabel();
+                    code_builder
+                            .iload(2)
+                            .getstatic(self, "output_buffer", cd_buffer)
+                            .arraylength()
+                            .getstatic(self, "output_length", cd_int)
+                            .isub()
+                            .if_icmple(fits)
+                            .invokestatic(self, "flush", flush)
+                            // doesn't fit even in an empty buffer, no point copying it
+                            .iload(2)
+                            .getstatic(self, "output_buffer", cd_buffer)
+                            .arraylength()
+                            .if_icmplt(fits)
+                            .getstatic(self, "stdout", CD_FileOutputStream)
+                            .aload(0)
+                            .iload(1)
+                            .iload(2)
+                            .invokevirtual(CD_FileOutputStream, "write", write_bytes)
+                            .return_()
+                            .labelBinding(fits)
+                            .aload(0)
+                            .iload(1)
+                            .getstatic(self, "output_buffer", cd_buffer)
+                            .getstatic(self, "output_length", cd_int)
+                            .iload(2)
+                            .invokestatic(System.class.describeConstable().orElseThrow(), "arraycopy",
+                                    MethodTypeDesc.ofDescriptor("(Ljava/lang/Object;ILjava/lang/Object;II)V"))
+                            .getstatic(self, "output_length", cd_int)
+                            .iload(2)
+                            .iadd()
+                            .putstatic(self, "output_length", cd_int)
+                            .return_();
+                });
+    }
+    
+    // emits grow(III)I which takes (pointer, low, high), makes the tape big enough for the cells from pointer + low
+    // to pointer + high (at least doubling it) and returns where the pointer ended up in the new tape
+    private void writeGrow(ClassBuilder class_builder, ClassDesc self) {
+        var max = MethodTypeDesc.ofDescriptor("(II)I");
+        var cd_math = Math.class.describeConstable().orElseThrow();
+        
+        class_builder
+                .withMethodBody("grow", MethodTypeDesc.ofDescriptor("(III)I"), ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE, (code_builder) -> {
+                    var length = 3;
+                    var front = 4;
+                    var back = 5;
+                    var grown = 6;
+                    var no_front = code_builder.newLabel();
+                    var no_back = code_builder.newLabel();
+                    code_builder
+                            .getstatic(self, "array", cell_type.arrayType())
+                            .arraylength()
+                            .istore(length)
+                            // cells to add before the old tape
+                            .loadConstant(0)
+                            .istore(front)
+                            .iload(0)
+                            .iload(1)
+                            .iadd()
+                            .ifge(no_front)
+                            .iload(length)
+                            .iload(0)
+                            .iload(1)
+                            .iadd()
+                            .ineg()
+                            .invokestatic(cd_math, "max", max)
+                            .istore(front)
+                            .labelBinding(no_front)
+                            // cells to add after it
+                            .loadConstant(0)
+                            .istore(back)
+                            .iload(0)
+                            .iload(2)
+                            .iadd()
+                            .iload(length)
+                            .if_icmplt(no_back)
+                            .iload(length)
+                            .iload(0)
+                            .iload(2)
+                            .iadd()
+                            .iload(length)
+                            .isub()
+                            .loadConstant(1)
+                            .iadd()
+                            .invokestatic(cd_math, "max", max)
+                            .istore(back)
+                            .labelBinding(no_back)
+                            .iload(length)
+                            .iload(front)
+                            .iadd()
+                            .iload(back)
+                            .iadd()
+                            .newarray(cell_type.kind)
+                            .astore(grown)
+                            .getstatic(self, "array", cell_type.arrayType())
+                            .loadConstant(0)
+                            .aload(grown)
+                            .iload(front)
+                            .iload(length)
+                            .invokestatic(System.class.describeConstable().orElseThrow(), "arraycopy",
+                                    MethodTypeDesc.ofDescriptor("(Ljava/lang/Object;ILjava/lang/Object;II)V"))
+                            .aload(grown)
+                            .putstatic(self, "array", cell_type.arrayType())
+                            .iload(0)
+                            .iload(front)
+                            .iadd()
+                            .ireturn();
+                });
+    }
+    
+    // emits findZero and findZeroBackwards which take (array, index) and return the index of the first 0 cell
+    // from index in that direction, byte[] tapes get read 8 cells at a time through a long view of the array,
+    // and findZeroStrided which takes (array, index, step) for every other step and checks one cell at a time
+    private void writeFindZero(ClassBuilder class_builder, ClassDesc self) {
+        var type = MethodTypeDesc.of(ConstantDescs.CD_int, cell_type.arrayType(), ConstantDescs.CD_int);
+        
+        class_builder
+                .withMethodBody("findZeroStrided", MethodTypeDesc.of(ConstantDescs.CD_int, cell_type.arrayType(), ConstantDescs.CD_int, ConstantDescs.CD_int),
+                        ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE, (code_builder) -> {
+                    var loop = code_builder.newLabel();
+                    var end = code_builder.newLabel();
+                    code_builder
+                            .labelBinding(loop)
+                            .iload(1)
+                            .iflt(end)
+                            .iload(1)
+                            .aload(0)
+                            .arraylength()
+                            .if_icmpge(end)
+                            .aload(0)
+                            .iload(1)
+                            .arrayLoad(cell_type.kind)
+                            .ifeq(end)
+                            .iload(1)
+                            .iload(2)
+                            .iadd()
+                            .istore(1)
+                            .goto_(loop)
+                            .labelBinding(end)
+                            .iload(1)
+                            .ireturn();
+                });
+        
+        if (cell_type.kind != TypeKind.BYTE) {
+            class_builder
+                    .withMethodBody("findZero", type, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE, (code_builder) -> {
+                        var loop = code_builder.newLabel();
+                        var end = code_builder.newLabel();
+                        code_builder
+                                .labelBinding(loop)
+                                .iload(1)
+                                .aload(0)
+                                .arraylength()
+                                .if_icmpge(end)
+                                .aload(0)
+                                .iload(1)
+                                .arrayLoad(cell_type.kind)
+                                .ifeq(end)
+                                .iinc(1, 1)
+                                .goto_(loop)
+                                .labelBinding(end)
+                                .iload(1)
+                                .ireturn();
+                    })
+                    .withMethodBody("findZeroBackwards", type, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE, (code_builder) -> {
+                        var loop = code_builder.newLabel();
+                        var end = code_builder.newLabel();
+                        code_builder
+                                .labelBinding(loop)
+                                .iload(1)
+                                .iflt(end)
+                                .aload(0)
+                                .iload(1)
+                                .arrayLoad(cell_type.kind)
+                                .ifeq(end)
+                                .iinc(1, -1)
+                                .goto_(loop)
+                                .labelBinding(end)
+                                .iload(1)
+                                .ireturn();
+                    });
+            return;
+        }
+        
+        var cd_var_handle = VarHandle.class.describeConstable().orElseThrow();
+        var cd_byte_order = ByteOrder.class.describeConstable().orElseThrow();
+        var get = MethodTypeDesc.of(ConstantDescs.CD_long, cell_type.arrayType(), ConstantDescs.CD_int);
+        var cd_long = Long.class.describeConstable().orElseThrow();
+        var count_zeros = MethodTypeDesc.ofDescriptor("(J)I");
+        
+        // leaves a long on the stack with the top bit of every byte of the long in the given slot set when that byte is 0
+        Consumer<CodeBuilder.BlockCodeBuilder> zero_bytes = (builder) -> builder
+                .lload(2)
+                .loadConstant(0x7F7F7F7F7F7F7F7FL)
+                .land()
+                .loadConstant(0x7F7F7F7F7F7F7F7FL)
+                .ladd()
+                .lload(2)
+                .lor()
+                .loadConstant(0x7F7F7F7F7F7F7F7FL)
+                .lor()
+                .loadConstant(-1L)
+                .lxor();
+        
+        class_builder
+                .withField("cells", cd_var_handle, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL)
+                .withMethodBody(ConstantDescs.CLASS_INIT_NAME, ConstantDescs.MTD_void, ClassFile.ACC_STATIC, (code_builder) -> code_builder
+                        .loadConstant(long[].class.describeConstable().orElseThrow())
+                        .getstatic(cd_byte_order, "LITTLE_ENDIAN", cd_byte_order)
+                        .invokestatic(MethodHandles.class.describeConstable().orElseThrow(), "byteArrayViewVarHandle",
+                                MethodTypeDesc.of(cd_var_handle, ConstantDescs.CD_Class, cd_byte_order))
+                        .putstatic(self, "cells", cd_var_handle)
+                        .return_())
+                .withMethodBody("findZero", type, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE, (code_builder) -> {
+                    var words = code_builder.newLabel();
+                    var next_word = code_builder.newLabel();
+                    var cells = code_builder.newLabel();
+                    var end = code_builder.newLabel();
+                    code_builder
+                            .labelBinding(words)
+                            .iload(1)
+                            .loadConstant(Long.BYTES)
+                            .iadd()
+                            .aload(0)
+                            .arraylength()
+                            .if_icmpgt(cells)
+                            .getstatic(self, "cells", cd_var_handle)
+                            .aload(0)
+                            .iload(1)
+                            .invokevirtual(cd_var_handle, "get", get)
+                            .lstore(2)
+                            .block(zero_bytes)
+                            .dup2()
+                            .lstore(2)
+                            .lconst_0()
+                            .lcmp()
+                            .ifeq(next_word)
+                            // the lowest byte is the first cell
+                            .iload(1)
+                            .lload(2)
+                            .invokestatic(cd_long, "numberOfTrailingZeros", count_zeros)
+                            .loadConstant(3)
+                            .iushr()
+                            .iadd()
+                            .ireturn()
+                            .labelBinding(next_word)
+                            .iinc(1, Long.BYTES)
+                            .goto_(words)
+                            // whatever's left that doesn't fill a long
+                            .labelBinding(cells)
+                            .iload(1)
+                            .aload(0)
+                            .arraylength()
+                            .if_icmpge(end)
+                            .aload(0)
+                            .iload(1)
+                            .baload()
+                            .ifeq(end)
+                            .iinc(1, 1)
+                            .goto_(cells)
+                            .labelBinding(end)
+                            .iload(1)
+                            .ireturn();
+                })
+                .withMethodBody("findZeroBackwards", type, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE, (code_builder) -> {
+                    var words = code_builder.newLabel();
+                    var next_word = code_builder.newLabel();
+                    var cells = code_builder.newLabel();
+                    var end = code_builder.newLabel();
+                    code_builder
+                            .labelBinding(words)
+                            .iload(1)
+                            .loadConstant(Long.BYTES - 1)
+                            .if_icmplt(cells)
+                            .getstatic(self, "cells", cd_var_handle)
+                            .aload(0)
+                            .iload(1)
+                            .loadConstant(Long.BYTES - 1)
+                            .isub()
+                            .invokevirtual(cd_var_handle, "get", get)
+                            .lstore(2)
+                            .block(zero_bytes)
+                            .dup2()
+                            .lstore(2)
+                            .lconst_0()
+                            .lcmp()
+                            .ifeq(next_word)
+                            // the highest byte is the cell at index
+                            .iload(1)
+                            .lload(2)
+                            .invokestatic(cd_long, "numberOfLeadingZeros", count_zeros)
+                            .loadConstant(3)
+                            .iushr()
+                            .isub()
+                            .ireturn()
+                            .labelBinding(next_word)
+                            .iinc(1, -Long.BYTES)
+                            .goto_(words)
+                            .labelBinding(cells)
+                            .iload(1)
+                            .iflt(end)
+                            .aload(0)
+                            .iload(1)
+                            .baload()
+                            .ifeq(end)
+                            .iinc(1, -1)
+                            .goto_(cells)
+                            .labelBinding(end)
+                            .iload(1)
+                            .ireturn();
+                });
+    }
+    
+    // emits the fields and the read()I method that back InputMode.BUFFERED
+    private void writeInputBuffer(ClassBuilder class_builder, ClassDesc self) {
+        var cd_buffer = byte[].class.describeConstable().orElseThrow();
+        var cd_int = int.class.describeConstable().orElseThrow();
+        
+        class_builder
+                .withField("stdin", CD_FileInputStream, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE)
+                .withField("input_buffer", cd_buffer, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE)
+                .withField("input_position", cd_int, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE)
+                .withField("input_limit", cd_int, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE)
+                .withMethodBody("read", MethodTypeDesc.ofDescriptor("()I"), ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE, (code_builder) -> {
+                    var available = code_builder.newLabel();
+                    var refilled = code_builder.newLabel();
+                    code_builder
+                            .getstatic(self, "input_position", cd_int)
+                            .getstatic(self, "input_limit", cd_int)
+                            .if_icmplt(available);
+                    // we're about to block on stdin so whatever was written so far has to be visible
+                    if (output_mode == OutputMode.BUFFERED)
+                        code_builder
+                                .invokestatic(self, "flush", MethodTypeDesc.ofDescriptor("()V"));
+                    code_builder
+                            .loadConstant(0)
+                            .putstatic(self, "input_position", cd_int)
+                            .getstatic(self, "stdin", CD_FileInputStream)
+                            .getstatic(self, "input_buffer", cd_buffer)
+                            .invokevirtual(CD_FileInputStream, "read", MethodTypeDesc.ofDescriptor("([B)I"))
+                            .dup()
+                            .putstatic(self, "input_limit", cd_int)
+                            .ifgt(refilled)
+                            // end of stream, leave the buffer empty so the next read tries again
+                            .loadConstant(0)
+                            .putstatic(self, "input_limit", cd_int)
+                            .loadConstant(-1)
+                            .ireturn()
+                            .labelBinding(refilled)
+                            .labelBinding(available)
+                            .getstatic(self, "input_buffer", cd_buffer)
+                            .getstatic(self, "input_position", cd_int)
+                            .baload()
+                            .loadConstant(255)
+                            .iand()
+                            .getstatic(self, "input_position", cd_int)
+                            .loadConstant(1)
+                            .iadd()
+                            .putstatic(self, "input_position", cd_int)
+                            .ireturn();
+                });
+    }
+    
+    // emits the fields and the map(Ljava/lang/String;)V and read()I methods that back InputMode.MAPPED
+    private void writeInputMapping(ClassBuilder class_builder, ClassDesc self) {
+        var cd_long = long.class.describeConstable().orElseThrow();
+        var cd_channel = FileChannel.class.describeConstable().orElseThrow();
+        var cd_path = Path.class.describeConstable().orElseThrow();
+        
+        class_builder
+                .withField("input_segment", CD_MemorySegment, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE)
+                .withField("input_position", cd_long, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE)
+                .withField("input_size", cd_long, ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE)
+                .withMethodBody("map", MethodTypeDesc.ofDescriptor("(Ljava/lang/String;)V"), ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE, (code_builder) -> code_builder
+                        // the mapping stays valid after the channel is gone so it's never closed
+                        .aload(0)
+                        .loadConstant(0)
+                        .anewarray(String.class.describeConstable().orElseThrow())
+                        .invokestatic(cd_path, "of", MethodTypeDesc.ofDescriptor("(Ljava/lang/String;[Ljava/lang/String;)Ljava/nio/file/Path;"), true)
+                        .loadConstant(1)
+                        .anewarray(OpenOption.class.describeConstable().orElseThrow())
+                        .dup()
+                        .loadConstant(0)
+                        .getstatic(StandardOpenOption.class.describeConstable().orElseThrow(), "READ",
+                                StandardOpenOption.class.describeConstable().orElseThrow())
+                        .aastore()
+                        .invokestatic(cd_channel, "open", MethodTypeDesc.ofDescriptor("(Ljava/nio/file/Path;[Ljava/nio/file/OpenOption;)Ljava/nio/channels/FileChannel;"))
+                        .astore(0)
+                        .aload(0)
+                        .getstatic(FileChannel.MapMode.class.describeConstable().orElseThrow(), "READ_ONLY",
+                                FileChannel.MapMode.class.describeConstable().orElseThrow())
+                        .loadConstant(0L)
+                        .aload(0)
+                        .invokevirtual(cd_channel, "size", MethodTypeDesc.ofDescriptor("()J"))
+                        .invokestatic(Arena.class.describeConstable().orElseThrow(), "global",
+                                MethodTypeDesc.ofDescriptor("()Ljava/lang/foreign/Arena;"), true)
+                        .invokevirtual(cd_channel, "map", MethodTypeDesc.ofDescriptor(
+                                "(Ljava/nio/channels/FileChannel$MapMode;JJLjava/lang/foreign/Arena;)Ljava/lang/foreign/MemorySegment;"))
+                        .dup()
+                        .putstatic(self, "input_segment", CD_MemorySegment)
+                        .invokeinterface(CD_MemorySegment, "byteSize", MethodTypeDesc.ofDescriptor("()J"))
+                        .putstatic(self, "input_size", cd_long)
+                        .return_())
+                .withMethodBody("read", MethodTypeDesc.ofDescriptor("()I"), ClassFile.ACC_STATIC | ClassFile.ACC_PRIVATE, (code_builder) -> {
+                    var end = code_builder.newLabel();
+                    code_builder
+                            .getstatic(self, "input_position", cd_long)
+                            .getstatic(self, "input_size", cd_long)
+                            .lcmp()
+                            .ifge(end)
+                            .getstatic(self, "input_segment", CD_MemorySegment)
+                            .getstatic(ValueLayout.class.describeConstable().orElseThrow(), "JAVA_BYTE",
+                                    ValueLayout.OfByte.class.describeConstable().orElseThrow())
+                            .getstatic(self, "input_position", cd_long)
+                            .invokeinterface(CD_MemorySegment, "get", MethodTypeDesc.ofDescriptor("(Ljava/lang/foreign/ValueLayout$OfByte;J)B"))
+                            .loadConstant(255)
+                            .iand()
+                            .getstatic(self, "input_position", cd_long)
+                            .loadConstant(1L)
+                            .ladd()
+                            .putstatic(self, "input_position", cd_long)
+                            .ireturn()
+                            .labelBinding(end)
+                            .loadConstant(-1)
+                            .ireturn();
+                });
+    }
+}
@@ -0,0 +1,50 @@
+package canaryprism.jbfc.codegen;
+
+import canaryprism.jbfc.Instruction;
+
+import java.lang.classfile.ClassBuilder;
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.CodeBuilder;
+import java.lang.constant.ClassDesc;
+import java.util.List;
+
+// what a Nested instruction gets replaced with once its body had to be split up
+record Loop(List<? extends Instruction> instructions, String name) implements Instruction.Nested, Instruction.Outlined {
+    
+    Loop(List<? extends Instruction> instructions) {
+        this(instructions, Instruction.methodName("loop", instructions));
+    }
+    
+    @Override
+    public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+        code_builder
+                .block(pointer.invoke(self, name));
+    }
+    
+    @Override
+    public void writeClass(ClassBuilder class_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+        class_builder
+                .withMethod(name, pointer.methodType(), ClassFile.ACC_STATIC, (method_builder) -> method_builder
+                        .withCode((code_builder) -> {
+                            var right_label = code_builder.newLabel();
+                            var left_label = code_builder.newLabel();
+                            code_builder
+                                    .labelBinding(left_label)
+                                    .block(array.loadIndex(pointer))
+                                    .ifeq(right_label);
+                            
+                            for (var instruction : instructions) {
+                                instruction.writeCode(code_builder, self, array, pointer, input, output);
+                            }
+                            
+                            code_builder
+                                    .goto_(left_label)
+                                    .labelBinding(right_label)
+                                    .block(pointer.return_());
+                        }));
+        
+        for (var instruction : instructions) {
+            instruction.writeClass(class_builder, self, array, pointer, input, output);
+        }
+    }
+}
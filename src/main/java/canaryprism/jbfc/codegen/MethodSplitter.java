@@ -0,0 +1,173 @@
+package canaryprism.jbfc.codegen;
+
+import canaryprism.jbfc.Instruction;
+
+import java.lang.classfile.Attributes;
+import java.lang.classfile.ClassFile;
+import java.lang.constant.ClassDesc;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// HotSpot won't JIT compile methods with more than 8000 bytes of bytecode (HugeMethodLimit) so this moves runs of
+// instructions into chunks of their own until every method is under the limit, including the bodies of Nested
+// instructions, sizes are measured by writing the instructions into a scratch class
+// runs of Straight instructions get put into Blocks first, which are never split up
+// every Outlined instruction after the first with its name becomes a Call, so identical loops only get split and
+// written once per class, a splitter is good for one class
+public final class MethodSplitter {
+    
+    private static final int MEASURE_BATCH_SIZE = 4096;
+    
+    private final ClassFile classfile;
+    private final int limit;
+    
+    private final ClassDesc self;
+    private final Instruction.Array array;
+    private final Instruction.Pointer pointer;
+    private final Instruction.Input input;
+    private final Instruction.Output output;
+    
+    // the name of the method that was written for every Outlined instruction so far, by the instruction's own name,
+    // they're different when a loop's body had to be split
+    private final Map<String, String> methods = new HashMap<>();
+    // the most bytecode any list split() gave back has
+    private int largest = 0;
+    
+    public MethodSplitter(ClassFile classfile, int limit, ClassDesc self,
+                          Instruction.Array array, Instruction.Pointer pointer, Instruction.Input input, Instruction.Output output) {
+        this.classfile = classfile;
+        this.limit = limit;
+        this.self = self;
+        this.array = array;
+        this.pointer = pointer;
+        this.input = input;
+        this.output = output;
+    }
+    
+    public List<Instruction> split(List<? extends Instruction> instructions) {
+        List<Instruction> list = new ArrayList<>(instructions.size());
+        for (var instruction : instructions) {
+            var original = instruction;
+            if (original instanceof Instruction.Outlined outlined && methods.containsKey(outlined.name())) {
+                list.add(new Call(methods.get(outlined.name())));
+                continue;
+            }
+            
+            if (instruction instanceof Instruction.Nested nested) {
+                var body = split(nested.instructions());
+                if (!body.equals(nested.instructions()))
+                    instruction = outline(new Loop(body));
+            }
+            if (original instanceof Instruction.Outlined outlined) {
+                if (instruction == original)
+                    instruction = outline(outlined);
+                methods.put(outlined.name(), ((Instruction.Outlined) instruction).name());
+            }
+            list.add(instruction);
+        }
+        list = Block.group(list);
+        
+        var sizes = measure(list);
+        while (sum(sizes) > limit) {
+            var chunked = chunk(list, sizes);
+            // every instruction is already too big to share a chunk with its neighbours
+            if (chunked.size() == list.size())
+                break;
+            list = chunked;
+            sizes = measure(list);
+        }
+        largest = Math.max(largest, sum(sizes));
+        
+        return list;
+    }
+    
+    // how many bytes of bytecode the given instructions write, not counting whatever they add to the class
+    public int size(List<? extends Instruction> instructions) {
+        return sum(measure(instructions));
+    }
+    
+    // the most bytecode a list split() gave back has, which is only over the limit when a single instruction is,
+    // every method the instructions write is at most this big (plus a loop around it)
+    public int largest() {
+        return largest;
+    }
+    
+    // how many methods the instructions split() gave back write into the class between them
+    public int methods() {
+        return (int) methods.values().stream()
+                .distinct()
+                .count();
+    }
+    
+    private ArrayList<Instruction> chunk(List<Instruction> instructions, int[] sizes) {
+        var chunks = new ArrayList<Instruction>();
+        var current = new ArrayList<Instruction>();
+        var size = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            if (!current.isEmpty() && size + sizes[i] > limit) {
+                chunks.add(close(current));
+                current = new ArrayList<>();
+                size = 0;
+            }
+            current.add(instructions.get(i));
+            size += sizes[i];
+        }
+        if (!current.isEmpty())
+            chunks.add(close(current));
+        return chunks;
+    }
+    
+    private Instruction close(List<Instruction> instructions) {
+        if (instructions.size() == 1)
+            return instructions.getFirst();
+        return outline(new Chunk(instructions));
+    }
+    
+    // different instructions can still end up with the same method, like two loops that are only the same once
+    // their bodies are split
+    private Instruction outline(Instruction.Outlined instruction) {
+        var written = methods.putIfAbsent(instruction.name(), instruction.name());
+        return (written != null) ? new Call(written) : instruction;
+    }
+    
+    // how many bytes of bytecode each instruction writes, not counting whatever it adds to the class
+    private int[] measure(List<? extends Instruction> instructions) {
+        var sizes = new int[instructions.size()];
+        // in batches so the scratch class's constant pool doesn't overflow
+        for (int start = 0; start < sizes.length; start += MEASURE_BATCH_SIZE) {
+            var batch = instructions.subList(start, Math.min(start + MEASURE_BATCH_SIZE, sizes.length));
+            var data = classfile.build(self, (class_builder) -> {
+                class_builder
+                        .withMethodBody("empty", pointer.methodType(), ClassFile.ACC_STATIC, (code_builder) -> code_builder
+                                .block(pointer.return_()));
+                for (int i = 0; i < batch.size(); i++) {
+                    var instruction = batch.get(i);
+                    class_builder
+                            .withMethodBody("instruction" + i, pointer.methodType(), ClassFile.ACC_STATIC, (code_builder) -> {
+                                instruction.writeCode(code_builder, self, array, pointer, input, output);
+                                code_builder
+                                        .block(pointer.return_());
+                            });
+                }
+            });
+            
+            var lengths = classfile.parse(data).methods().stream()
+                    .mapToInt((method) -> method.findAttribute(Attributes.code()).orElseThrow().codeLength())
+                    .toArray();
+            for (int i = 0; i < batch.size(); i++) {
+                sizes[start + i] = lengths[i + 1] - lengths[0];
+            }
+        }
+        return sizes;
+    }
+    
+    private static int sum(int[] sizes) {
+        var sum = 0;
+        for (var size : sizes) {
+            sum += size;
+        }
+        return sum;
+    }
+}
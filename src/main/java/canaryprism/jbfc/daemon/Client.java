@@ -0,0 +1,42 @@
+package canaryprism.jbfc.daemon;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+// the other end of Daemon, deliberately doesn't touch anything else in jbfc (not even picocli) so it starts up
+// as fast as a JVM can
+//
+// java -cp jbfc.jar canaryprism.jbfc.daemon.Client SOCKET [jbfc options] FILES...
+public final class Client {
+    
+    private Client() {}
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("usage: Client SOCKET [jbfc options] FILES...");
+            System.exit(2);
+        }
+        
+        try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(args[0]))) {
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeUTF(Path.of("").toAbsolutePath().toString());
+            out.writeInt(args.length - 1);
+            for (int i = 1; i < args.length; i++) {
+                out.writeUTF(args[i]);
+            }
+            out.flush();
+            
+            var in = new DataInputStream(Channels.newInputStream(channel));
+            var exit_code = in.readInt();
+            in.transferTo(System.out);
+            System.out.flush();
+            System.exit(exit_code);
+        }
+    }
+}
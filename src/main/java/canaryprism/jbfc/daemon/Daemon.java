@@ -0,0 +1,138 @@
+package canaryprism.jbfc.daemon;
+
+import canaryprism.jbfc.Main;
+import canaryprism.jbfc.optimise.PassManager;
+import picocli.CommandLine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// keeps one JVM around that compiles whatever Client asks it to, so startup, finding optimisations and warming up
+// the JIT on the passes only get paid for once instead of on every single file
+//
+// a request is the client's working directory and its arguments (writeUTF, then writeInt how many arguments there
+// are and writeUTF each of them), it gets handled exactly like jbfc would handle those arguments and the response is
+// the exit code (writeInt) followed by everything jbfc printed until the connection closes
+public final class Daemon {
+    
+    // pipelines found by earlier requests, see Main
+    private final Map<List<Object>, PassManager> chains = new ConcurrentHashMap<>();
+    
+    // never returns, every connection is handled on its own virtual thread
+    public void serve(Path socket) throws IOException {
+        // a socket file left behind by a daemon that didn't get to clean up would make bind fail, but if something still
+        // answers on it then it's a daemon that's still running and taking its socket would leave it unreachable
+        if (Files.exists(socket)) {
+            if (listening(socket))
+                throw new IOException("a daemon is already listening on " + socket);
+            Files.delete(socket);
+        }
+        
+        try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            bind(server, socket);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socket);
+                } catch (IOException _) {}
+            }));
+            
+            while (true) {
+                var channel = server.accept();
+                Thread.ofVirtual().start(() -> handle(channel));
+            }
+        }
+    }
+    
+    // anyone who can connect gets to write files as us, so the socket is only for our own user, it's bound in a
+    // directory only we can get into and only moved to where it goes once its permissions are set
+    private static void bind(ServerSocketChannel server, Path socket) throws IOException {
+        if (!socket.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            return;
+        }
+        
+        var directory = Files.createTempDirectory(socket.toAbsolutePath().getParent(), ".jbfc",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        var temporary = directory.resolve("socket");
+        try {
+            server.bind(UnixDomainSocketAddress.of(temporary));
+            Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-------"));
+            Files.move(temporary, socket, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+            Files.delete(directory);
+        }
+    }
+    
+    private static boolean listening(Path socket) throws IOException {
+        try (var _ = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            return true;
+        } catch (ConnectException _) {
+            return false;
+        }
+    }
+    
+    private void handle(SocketChannel channel) {
+        try (channel) {
+            var in = new DataInputStream(Channels.newInputStream(channel));
+            var working_directory = Path.of(in.readUTF());
+            var args = new String[in.readInt()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+            
+            var output = new StringWriter();
+            var writer = new PrintWriter(output);
+            var exit_code = compile(working_directory, args, writer);
+            writer.flush();
+            
+            var out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.writeInt(exit_code);
+            out.write(output.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (EOFException _) {
+            // closed without sending a whole request, which is also what another daemon checking whether we're still
+            // here looks like
+        } catch (IOException e) {
+            // only the client that went away is affected, the daemon keeps going
+            e.printStackTrace();
+        }
+    }
+    
+    private int compile(Path working_directory, String[] args, PrintWriter writer) {
+        var command_line = new CommandLine(new Main(working_directory, chains))
+                .setCaseInsensitiveEnumValuesAllowed(true)
+                .setOut(writer)
+                .setErr(writer);
+        
+        // run and daemon would use the daemon's own stdin and stdout, only plain compiling makes sense here
+        try {
+            if (command_line.parseArgs(args).hasSubcommand()) {
+                writer.println(CommandLine.Help.Ansi.AUTO.string("@|red Error: only compiling works through the daemon|@"));
+                return 2;
+            }
+        } catch (CommandLine.ParameterException _) {
+            // execute reports these the same way jbfc would
+        }
+        
+        return command_line.execute(args);
+    }
+}
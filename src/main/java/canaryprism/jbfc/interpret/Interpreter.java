@@ -0,0 +1,340 @@
+package canaryprism.jbfc.interpret;
+
+import canaryprism.jbfc.Instruction;
+import canaryprism.jbfc.bf.BrainfuckInstruction;
+import canaryprism.jbfc.codegen.ClassGenerator;
+import canaryprism.jbfc.optimise.collapse.CollapseInstruction;
+import canaryprism.jbfc.optimise.flow.FlowInstruction;
+import canaryprism.jbfc.optimise.offset.OffsetInstruction;
+import canaryprism.jbfc.optimise.state.StateInstruction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+// runs a program without generating any classes at all, the instructions get lowered into one flat int[] of opcodes
+// and their operands with every loop's jumps already worked out, then run() walks that with everything in locals
+// for tiny programs where generating and loading a class takes longer than the program itself, and for native images
+// which can't define classes at runtime
+public final class Interpreter {
+    
+    // opcodes, followed by their operands
+    private static final int END = 0;
+    private static final int MOVE = 1;              // amount
+    private static final int MODIFY = 2;            // offset, amount
+    private static final int SET = 3;               // offset, value
+    private static final int WRITE = 4;             // offset
+    private static final int READ = 5;              // offset
+    private static final int PRINT = 6;             // start and length of the bytes in data
+    private static final int TRANSFER = 7;          // offset, count, then count pairs of target offset and multiplier
+    private static final int FIND_ZERO = 8;         // step
+    private static final int JUMP_IF_ZERO = 9;      // where to jump
+    private static final int JUMP_IF_NOT_ZERO = 10; // where to jump
+    private static final int RESERVE = 11;          // low, high, only on growable tapes
+    
+    private static final int BUFFER_SIZE = 1 << 13;
+    
+    private int cell_bits = 8;
+    private ClassGenerator.Tape tape = ClassGenerator.Tape.FIXED;
+    private Integer tape_size;
+    private Integer tape_start;
+    
+    public Interpreter cellBits(int cell_bits) {
+        if (cell_bits <= 0 || cell_bits > Integer.SIZE)
+            throw new IllegalArgumentException("cells can't be " + cell_bits + " bits");
+        this.cell_bits = cell_bits;
+        return this;
+    }
+    
+    // a growable tape grows the same way the class generator's does, so programs that rely on it work here too
+    public Interpreter tape(ClassGenerator.Tape tape) {
+        this.tape = tape;
+        return this;
+    }
+    
+    public Interpreter tapeSize(int tape_size) {
+        if (tape_size <= 0)
+            throw new IllegalArgumentException("tape size must be positive");
+        this.tape_size = tape_size;
+        return this;
+    }
+    
+    public Interpreter tapeStart(int tape_start) {
+        this.tape_start = tape_start;
+        return this;
+    }
+    
+    // takes the output of any of the built in optimisations, or anything implementing Instruction.Nested for loops
+    public void run(List<? extends Instruction> program) {
+        run(program, new FileInputStream(FileDescriptor.in), new FileOutputStream(FileDescriptor.out));
+    }
+    
+    // the same but reading from and writing to the given streams instead of stdin and stdout
+    public void run(List<? extends Instruction> program, InputStream stdin, OutputStream stdout) {
+        var size = (tape_size != null) ? tape_size : tape.defaultSize();
+        var start = (tape_start != null) ? tape_start : size / 2;
+        if (start < 0 || start >= size)
+            throw new IllegalArgumentException("tape start " + start + " is outside a tape of " + size + " cells");
+        
+        var lowering = new Lowering(tape == ClassGenerator.Tape.GROWABLE);
+        lowering.lower(program);
+        lowering.add(END);
+        
+        try {
+            run(Arrays.copyOf(lowering.code, lowering.length), lowering.data.toByteArray(), size, start, stdin, stdout);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private void run(int[] code, byte[] data, int size, int start, InputStream stdin, OutputStream stdout) throws IOException {
+        var mask = (cell_bits < Integer.SIZE) ? (1 << cell_bits) - 1 : -1;
+        var array = new int[size];
+        var pointer = start;
+        
+        var input = new byte[BUFFER_SIZE];
+        var input_position = 0;
+        var input_length = 0;
+        var output = new byte[BUFFER_SIZE];
+        var output_length = 0;
+        
+        var pc = 0;
+        while (true) {
+            switch (code[pc]) {
+                case MOVE -> {
+                    pointer += code[pc + 1];
+                    pc += 2;
+                }
+                case MODIFY -> {
+                    var index = pointer + code[pc + 1];
+                    array[index] = (array[index] + code[pc + 2]) & mask;
+                    pc += 3;
+                }
+                case SET -> {
+                    array[pointer + code[pc + 1]] = code[pc + 2] & mask;
+                    pc += 3;
+                }
+                case WRITE -> {
+                    if (output_length == output.length) {
+                        stdout.write(output, 0, output_length);
+                        output_length = 0;
+                    }
+                    output[output_length++] = (byte) array[pointer + code[pc + 1]];
+                    pc += 2;
+                }
+                case READ -> {
+                    if (input_position == input_length) {
+                        // whatever was written so far has to be visible before we block on input
+                        stdout.write(output, 0, output_length);
+                        output_length = 0;
+                        input_position = 0;
+                        input_length = Math.max(0, stdin.read(input));
+                    }
+                    array[pointer + code[pc + 1]] = ((input_position < input_length) ? input[input_position++] & 0xFF : -1) & mask;
+                    pc += 2;
+                }
+                case PRINT -> {
+                    var length = code[pc + 2];
+                    if (output_length + length > output.length) {
+                        stdout.write(output, 0, output_length);
+                        output_length = 0;
+                    }
+                    if (length > output.length) {
+                        stdout.write(data, code[pc + 1], length);
+                    } else {
+                        System.arraycopy(data, code[pc + 1], output, output_length, length);
+                        output_length += length;
+                    }
+                    pc += 3;
+                }
+                case TRANSFER -> {
+                    var source = pointer + code[pc + 1];
+                    var count = code[pc + 2];
+                    var value = array[source];
+                    pc += 3;
+                    for (int i = 0; i < count; i++, pc += 2) {
+                        var index = source + code[pc];
+                        array[index] = (array[index] + value * code[pc + 1]) & mask;
+                    }
+                    array[source] = 0;
+                }
+                case FIND_ZERO -> {
+                    var step = code[pc + 1];
+                    while (array[pointer] != 0)
+                        pointer += step;
+                    pc += 2;
+                }
+                case RESERVE -> {
+                    var low = pointer + code[pc + 1];
+                    var high = pointer + code[pc + 2];
+                    if (low < 0 || high >= array.length) {
+                        // at least doubles the tape like the generated grow() does
+                        var front = (low < 0) ? Math.max(array.length, -low) : 0;
+                        var back = (high >= array.length) ? Math.max(array.length, high - array.length + 1) : 0;
+                        var grown = new int[array.length + front + back];
+                        System.arraycopy(array, 0, grown, front, array.length);
+                        array = grown;
+                        pointer += front;
+                    }
+                    pc += 3;
+                }
+                case JUMP_IF_ZERO -> pc = (array[pointer] == 0) ? code[pc + 1] : pc + 2;
+                case JUMP_IF_NOT_ZERO -> pc = (array[pointer] != 0) ? code[pc + 1] : pc + 2;
+                case END -> {
+                    stdout.write(output, 0, output_length);
+                    return;
+                }
+                default -> throw new IllegalStateException("unknown opcode " + code[pc] + " at " + pc);
+            }
+        }
+    }
+    
+    private static final class Lowering {
+        
+        // whether the tape grows, RESERVEs only get lowered for those
+        final boolean growable;
+        
+        int[] code = new int[64];
+        int length = 0;
+        
+        // the bytes every PRINT prints
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        
+        Lowering(boolean growable) {
+            this.growable = growable;
+        }
+        
+        void add(int... values) {
+            if (length + values.length > code.length)
+                code = Arrays.copyOf(code, Math.max(code.length * 2, length + values.length));
+            System.arraycopy(values, 0, code, length, values.length);
+            length += values.length;
+        }
+        
+        void move(int amount) {
+            add(MOVE, amount);
+            reserve(0, 0);
+        }
+        
+        // makes sure the cells from low to high (relative to the pointer) exist, like Pointer.reserve()
+        void reserve(int low, int high) {
+            if (growable)
+                add(RESERVE, low, high);
+        }
+        
+        // a scan on a growable tape is a loop so every step can grow it
+        void findZero(int step) {
+            if (!growable) {
+                add(FIND_ZERO, step);
+                return;
+            }
+            var start = length;
+            add(JUMP_IF_ZERO, -1);
+            move(step);
+            add(JUMP_IF_NOT_ZERO, start + 2);
+            code[start + 1] = length;
+        }
+        
+        // targets are pairs of offset and multiplier
+        void transfer(int offset, int... targets) {
+            var low = offset;
+            var high = offset;
+            for (int i = 0; i < targets.length; i += 2) {
+                low = Math.min(low, offset + targets[i]);
+                high = Math.max(high, offset + targets[i]);
+            }
+            reserve(low, high);
+            add(TRANSFER, offset, targets.length / 2);
+            add(targets);
+        }
+        
+        void lower(List<? extends Instruction> instructions) {
+            for (var instruction : instructions) {
+                lower(instruction);
+            }
+        }
+        
+        void lower(Instruction instruction) {
+            switch (instruction) {
+                case BrainfuckInstruction.BasicInstruction basic -> {
+                    switch (basic) {
+                        case INCREMENT -> add(MODIFY, 0, 1);
+                        case DECREMENT -> add(MODIFY, 0, -1);
+                        case LEFT -> move(-1);
+                        case RIGHT -> move(1);
+                        case WRITE -> add(WRITE, 0);
+                        case READ -> add(READ, 0);
+                    }
+                }
+                
+                case CollapseInstruction.Write _ -> add(WRITE, 0);
+                case CollapseInstruction.Read _ -> add(READ, 0);
+                case CollapseInstruction.Modify(var amount) -> add(MODIFY, 0, amount);
+                case CollapseInstruction.Move(var amount) -> move(amount);
+                
+                case FlowInstruction.Write _ -> add(WRITE, 0);
+                case FlowInstruction.Read _ -> add(READ, 0);
+                case FlowInstruction.Modify(var amount) -> add(MODIFY, 0, amount);
+                case FlowInstruction.Set(var value) -> add(SET, 0, value);
+                case FlowInstruction.Move(var amount) -> move(amount);
+                case FlowInstruction.FindZero(var step) -> findZero(step);
+                case FlowInstruction.Transfer(var targets) -> transfer(0, targets.stream()
+                        .flatMapToInt((target) -> IntStream.of(target.offset(), target.multiplier()))
+                        .toArray());
+                
+                case OffsetInstruction.Write(var offset) -> add(WRITE, offset);
+                case OffsetInstruction.Read(var offset) -> add(READ, offset);
+                case OffsetInstruction.Modify(var offset, var amount) -> add(MODIFY, offset, amount);
+                case OffsetInstruction.Set(var offset, var value) -> add(SET, offset, value);
+                case OffsetInstruction.Move(var amount) -> move(amount);
+                case OffsetInstruction.Reserve(var low, var high) -> reserve(low, high);
+                case OffsetInstruction.FindZero(var step) -> findZero(step);
+                case OffsetInstruction.Transfer(var offset, var targets) -> transfer(offset, targets.stream()
+                        .flatMapToInt((target) -> IntStream.of(target.offset(), target.multiplier()))
+                        .toArray());
+                
+                case StateInstruction.Write _ -> add(WRITE, 0);
+                case StateInstruction.Read _ -> add(READ, 0);
+                case StateInstruction.Modify(var amount) -> add(MODIFY, 0, amount);
+                case StateInstruction.Set(var value) -> add(SET, 0, value);
+                case StateInstruction.Move(var amount) -> move(amount);
+                case StateInstruction.FindZero(var step) -> findZero(step);
+                case StateInstruction.Transfer(var targets) -> transfer(0, targets.stream()
+                        .flatMapToInt((target) -> IntStream.of(target.offset(), target.multiplier()))
+                        .toArray());
+                case StateInstruction.BulkSet(var entries) -> {
+                    if (!entries.isEmpty())
+                        reserve(entries.getFirst().offset(), entries.getLast().offset());
+                    for (var entry : entries) {
+                        add(SET, entry.offset(), entry.value());
+                    }
+                }
+                case StateInstruction.Print(var bytes) -> {
+                    add(PRINT, data.size(), bytes.size());
+                    for (var b : bytes) {
+                        data.write(b);
+                    }
+                }
+                
+                // every loop looks the same once it's lowered
+                case Instruction.Nested nested -> {
+                    var start = length;
+                    add(JUMP_IF_ZERO, -1);
+                    lower(nested.instructions());
+                    add(JUMP_IF_NOT_ZERO, start + 2);
+                    code[start + 1] = length;
+                }
+                
+                default -> throw new IllegalArgumentException("can't interpret " + instruction);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package canaryprism.jbfc.optimise;
+
+import canaryprism.jbfc.Instruction;
+
+import java.util.List;
+
+/**
+ * an optimisation that can also run on a {@link FlatProgram}, jbfc keeps a program flat for as long as the
+ * optimisations it goes through implement this and only turns it into records at the end (or before the first
+ * one that doesn't)
+ */
+public interface FlatOptimisation<R extends Instruction> {
+    
+    /**
+     * takes a program in the shape this optimisation's input would have and returns it in the shape of its output,
+     * the given program may be reused
+     */
+    FlatProgram optimise(FlatProgram program);
+    
+    /**
+     * the records {@link Optimisation#optimise(List)} would've returned for a program this returned
+     */
+    List<R> lift(FlatProgram program);
+}
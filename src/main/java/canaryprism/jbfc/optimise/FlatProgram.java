@@ -0,0 +1,283 @@
+package canaryprism.jbfc.optimise;
+
+import canaryprism.jbfc.Instruction;
+import canaryprism.jbfc.bf.BrainfuckInstruction;
+import canaryprism.jbfc.optimise.collapse.CollapseInstruction;
+import canaryprism.jbfc.optimise.flow.FlowInstruction;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * a whole program as parallel arrays instead of a tree of instruction records, every instruction is an opcode,
+ * an operand and a jump, loops are a LOOP and an END that jump to each other
+ * <p>
+ * this is what the built in passes work on (see {@link FlatOptimisation}) since it's a tiny fraction of the memory
+ * of the records and walking it doesn't chase any pointers, {@link #of(List)} and {@link #lift} convert from and to
+ * the records for everything else
+ */
+public final class FlatProgram {
+    
+    // the operand of MODIFY and MOVE is the amount, SET's is the value and FIND_ZERO's is the step,
+    // LOOP and END jump to each other, TRANSFER's operand is where its targets start in the target pool
+    // and its jump is how many there are
+    public static final byte MODIFY = 0;
+    public static final byte MOVE = 1;
+    public static final byte READ = 2;
+    public static final byte WRITE = 3;
+    public static final byte LOOP = 4;
+    public static final byte END = 5;
+    public static final byte SET = 6;
+    public static final byte FIND_ZERO = 7;
+    public static final byte TRANSFER = 8;
+    
+    private byte[] opcodes = new byte[64];
+    private int[] operands = new int[64];
+    private int[] jumps = new int[64];
+    private int length = 0;
+    
+    // pairs of offset and multiplier
+    private int[] targets = new int[16];
+    private int targets_length = 0;
+    
+    // indices of the LOOPs that haven't been ended yet, innermost last
+    private int[] open = new int[16];
+    private int depth = 0;
+    
+    public int length() {
+        return length;
+    }
+    
+    public byte opcode(int index) {
+        return opcodes[index];
+    }
+    
+    public int operand(int index) {
+        return operands[index];
+    }
+    
+    public int jump(int index) {
+        return jumps[index];
+    }
+    
+    public int targetOffset(int index, int target) {
+        return targets[operands[index] + target * 2];
+    }
+    
+    public int targetMultiplier(int index, int target) {
+        return targets[operands[index] + target * 2 + 1];
+    }
+    
+    // the LOOP of the innermost loop that hasn't ended yet, or -1 at the top level
+    public int openLoop() {
+        return (depth > 0) ? open[depth - 1] : -1;
+    }
+    
+    public void add(byte opcode, int operand) {
+        if (opcode == LOOP || opcode == END || opcode == TRANSFER)
+            throw new IllegalArgumentException("use loop(), end() or addTransfer() for opcode " + opcode);
+        append(opcode, operand, 0);
+    }
+    
+    public void setOperand(int index, int operand) {
+        operands[index] = operand;
+    }
+    
+    public void loop() {
+        if (depth == open.length)
+            open = Arrays.copyOf(open, depth * 2);
+        open[depth++] = length;
+        append(LOOP, 0, -1);
+    }
+    
+    public void end() {
+        if (depth == 0)
+            throw new IllegalStateException("end() without a loop to end");
+        var start = open[--depth];
+        jumps[start] = length;
+        append(END, 0, start);
+    }
+    
+    // targets are pairs of offset and multiplier
+    public void addTransfer(int... targets) {
+        if (targets_length + targets.length > this.targets.length)
+            this.targets = Arrays.copyOf(this.targets, Math.max(this.targets.length * 2, targets_length + targets.length));
+        System.arraycopy(targets, 0, this.targets, targets_length, targets.length);
+        append(TRANSFER, targets_length, targets.length / 2);
+        targets_length += targets.length;
+    }
+    
+    /**
+     * drops everything from index on, including any loops that were opened there
+     */
+    public void truncate(int index) {
+        while (depth > 0 && open[depth - 1] >= index)
+            depth--;
+        length = index;
+    }
+    
+    private void append(byte opcode, int operand, int jump) {
+        if (length == opcodes.length) {
+            var capacity = length * 2;
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            operands = Arrays.copyOf(operands, capacity);
+            jumps = Arrays.copyOf(jumps, capacity);
+        }
+        opcodes[length] = opcode;
+        operands[length] = operand;
+        jumps[length] = jump;
+        length++;
+    }
+    
+    /**
+     * parses brainfuck source straight into a program, runs of the same instruction become one MODIFY or MOVE
+     * but nothing else gets merged
+     *
+     * @throws IOException if the brackets don't match up (with the offset of the bad bracket) or reading fails
+     */
+    public static FlatProgram parse(InputStream is) throws IOException {
+        var program = new FlatProgram();
+        var starts = new ArrayDeque<Long>();
+        
+        var buffer = new byte[1 << 16];
+        var offset = 0L;
+        // what the last instruction was, so runs can be added to it
+        var last = -1;
+        int length;
+        while ((length = is.read(buffer)) != -1) {
+            for (int i = 0; i < length; i++, offset++) {
+                var c = buffer[i];
+                switch (c) {
+                    case '+', '-', '>', '<' -> {
+                        var opcode = (c == '+' || c == '-') ? MODIFY : MOVE;
+                        var amount = (c == '+' || c == '>') ? 1 : -1;
+                        if (last == c) {
+                            program.operands[program.length - 1] += amount;
+                        } else {
+                            program.add(opcode, amount);
+                        }
+                    }
+                    case ',' -> program.add(READ, 0);
+                    case '.' -> program.add(WRITE, 0);
+                    case '[' -> {
+                        starts.push(offset);
+                        program.loop();
+                    }
+                    case ']' -> {
+                        if (starts.isEmpty())
+                            throw new IOException("unbalanced ] at byte " + offset);
+                        starts.pop();
+                        program.end();
+                    }
+                    default -> {
+                        continue;
+                    }
+                }
+                last = c;
+            }
+        }
+        
+        if (!starts.isEmpty())
+            throw new IOException("unbalanced [ at byte " + starts.peek() + ", found end of stream");
+        
+        return program;
+    }
+    
+    /**
+     * flattens the instructions of {@code brainfuck}, {@code collapse} or {@code flow}, anything implementing
+     * {@link Instruction.Nested} counts as a loop
+     */
+    public static FlatProgram of(List<? extends Instruction> instructions) {
+        var program = new FlatProgram();
+        
+        // the loop bodies being flattened, innermost on top
+        var stack = new ArrayDeque<Iterator<? extends Instruction>>();
+        stack.push(instructions.iterator());
+        while (!stack.isEmpty()) {
+            var iterator = stack.peek();
+            if (!iterator.hasNext()) {
+                stack.pop();
+                if (!stack.isEmpty())
+                    program.end();
+                continue;
+            }
+            
+            switch (iterator.next()) {
+                case BrainfuckInstruction.BasicInstruction basic -> {
+                    switch (basic) {
+                        case INCREMENT -> program.add(MODIFY, 1);
+                        case DECREMENT -> program.add(MODIFY, -1);
+                        case LEFT -> program.add(MOVE, -1);
+                        case RIGHT -> program.add(MOVE, 1);
+                        case READ -> program.add(READ, 0);
+                        case WRITE -> program.add(WRITE, 0);
+                    }
+                }
+                
+                case CollapseInstruction.Write _ -> program.add(WRITE, 0);
+                case CollapseInstruction.Read _ -> program.add(READ, 0);
+                case CollapseInstruction.Modify(var amount) -> program.add(MODIFY, amount);
+                case CollapseInstruction.Move(var amount) -> program.add(MOVE, amount);
+                
+                case FlowInstruction.Write _ -> program.add(WRITE, 0);
+                case FlowInstruction.Read _ -> program.add(READ, 0);
+                case FlowInstruction.Modify(var amount) -> program.add(MODIFY, amount);
+                case FlowInstruction.Set(var value) -> program.add(SET, value);
+                case FlowInstruction.Move(var amount) -> program.add(MOVE, amount);
+                case FlowInstruction.FindZero(var step) -> program.add(FIND_ZERO, step);
+                case FlowInstruction.Transfer(var transfer_targets) -> {
+                    var pairs = new int[transfer_targets.size() * 2];
+                    for (int i = 0; i < transfer_targets.size(); i++) {
+                        pairs[i * 2] = transfer_targets.get(i).offset();
+                        pairs[i * 2 + 1] = transfer_targets.get(i).multiplier();
+                    }
+                    program.addTransfer(pairs);
+                }
+                
+                case Instruction.Nested nested -> {
+                    program.loop();
+                    stack.push(nested.instructions().iterator());
+                }
+                
+                case Instruction instruction -> throw new IllegalArgumentException("can't flatten " + instruction);
+            }
+        }
+        
+        return program;
+    }
+    
+    /**
+     * turns the program back into instruction records, instruction makes the record for anything that isn't a loop
+     * given its index and loop wraps up a finished loop body
+     */
+    public <R extends Instruction> List<R> lift(IntFunction<? extends R> instruction, Function<? super List<R>, ? extends R> loop) {
+        if (depth > 0)
+            throw new IllegalStateException(depth + " loops were never ended");
+        
+        // the loop bodies being built, innermost on top
+        var stack = new ArrayDeque<List<R>>();
+        List<R> list = new ArrayList<>();
+        for (int i = 0; i < length; i++) {
+            switch (opcodes[i]) {
+                case LOOP -> {
+                    stack.push(list);
+                    list = new ArrayList<>();
+                }
+                case END -> {
+                    var body = list;
+                    list = stack.pop();
+                    list.add(loop.apply(body));
+                }
+                default -> list.add(instruction.apply(i));
+            }
+        }
+        return list;
+    }
+}
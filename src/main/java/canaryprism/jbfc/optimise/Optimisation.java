@@ -4,6 +4,13 @@ import canaryprism.jbfc.Instruction;
 
 import java.util.List;
 
+/**
+ * a pass from one kind of instruction to another, found through {@link java.util.ServiceLoader}
+ * <p>
+ * jbfc only makes one instance of each optimisation (plus whatever {@link #forCellSize(int)} returns) and calls
+ * {@link #optimise(List)} on it from several threads at once when it's given more than one file, so implementations
+ * have to be thread safe, keep whatever state a run needs in locals instead of fields
+ */
 public interface Optimisation<T extends Instruction, R extends Instruction> {
     Class<T> getInput();
     Class<R> getOutput();
@@ -11,4 +18,12 @@ public interface Optimisation<T extends Instruction, R extends Instruction> {
     List<R> optimise(List<T> input);
     
     String getIdentifier();
+    
+    /**
+     * returns a version of this optimisation for tape cells with the given number of bits,
+     * optimisations that reason about cell values have to know where they wrap around
+     */
+    default Optimisation<T, R> forCellSize(int bits) {
+        return this;
+    }
 }
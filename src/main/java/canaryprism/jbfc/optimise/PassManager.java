@@ -0,0 +1,175 @@
+package canaryprism.jbfc.optimise;
+
+import canaryprism.jbfc.Instruction;
+import canaryprism.jbfc.bf.BrainfuckInstruction;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * runs a pipeline of optimisations over a program, each pass has to take what the one before it outputs
+ * (and the first one {@code BrainfuckInstruction}), passes marked to repeat run over and over until their output
+ * stops changing, which only works for optimisations that take their own output or are a
+ * {@link RepeatableOptimisation}
+ * <p>
+ * the program stays a {@link FlatProgram} through every pass at the start that's a {@link FlatOptimisation}
+ * and doesn't repeat
+ * <p>
+ * a PassManager never changes once it's made so it can run any number of programs at once
+ * as long as its optimisations can (see {@link Optimisation})
+ */
+public final class PassManager {
+    
+    // a pass that's still changing things after this many runs is probably never going to stop
+    public static final int MAX_ITERATIONS = 100;
+    
+    public record Pass(Optimisation<?, ?> optimisation, boolean repeat) {
+        
+        public Pass {
+            if (repeat && !(optimisation instanceof RepeatableOptimisation<?>)
+                    && !optimisation.getInput().isAssignableFrom(optimisation.getOutput()))
+                throw new IllegalArgumentException("'" + optimisation.getIdentifier() + "' can't repeat, it takes "
+                        + optimisation.getInput().getSimpleName() + " but outputs " + optimisation.getOutput().getSimpleName());
+        }
+        
+        @Override
+        public String toString() {
+            return optimisation.getIdentifier() + ((repeat) ? "+" : "");
+        }
+    }
+    
+    /**
+     * what one pass did to one program, allocated is in bytes (-1 when the JVM can't tell) and the instruction counts
+     * include everything inside loops
+     */
+    public record Timing(Pass pass, int iterations, long nanos, long allocated, long before, long after) {
+        
+        @Override
+        public String toString() {
+            return String.format("%-12s %3d %s %10.3f ms %10s allocated %10d -> %d instructions",
+                    pass, iterations, (iterations == 1) ? "run " : "runs", nanos / 1e6,
+                    (allocated >= 0) ? String.format("%.1f MB", allocated / 1e6) : "?", before, after);
+        }
+    }
+    
+    private final List<Pass> passes;
+    
+    public PassManager(List<Pass> passes) {
+        Class<?> input = BrainfuckInstruction.class;
+        for (var pass : passes) {
+            var optimisation = pass.optimisation();
+            if (!optimisation.getInput().isAssignableFrom(input))
+                throw new IllegalArgumentException("'" + optimisation.getIdentifier() + "' takes "
+                        + optimisation.getInput().getSimpleName() + " but gets " + input.getSimpleName());
+            input = optimisation.getOutput();
+        }
+        this.passes = List.copyOf(passes);
+    }
+    
+    public List<Pass> passes() {
+        return passes;
+    }
+    
+    /**
+     * parses source and runs every pass over it, adding a Timing for each pass to timings unless that's null,
+     * and anything worth telling whoever asked for the passes that didn't stop them to warnings unless that's null
+     * <p>
+     * nothing gets printed here since the program asking might be a daemon compiling for someone else
+     */
+    public List<? extends Instruction> run(byte[] source, List<Timing> timings, List<String> warnings) throws IOException {
+        if (passes.isEmpty() || !(passes.getFirst().optimisation() instanceof FlatOptimisation<?>) || passes.getFirst().repeat())
+            return run(BrainfuckInstruction.parse(new ByteArrayInputStream(source)), 0, timings, warnings);
+        
+        var program = FlatProgram.parse(new ByteArrayInputStream(source));
+        FlatOptimisation<?> last = null;
+        var i = 0;
+        for (; i < passes.size(); i++) {
+            var pass = passes.get(i);
+            if (!(pass.optimisation() instanceof FlatOptimisation<?> flat) || pass.repeat())
+                break;
+            
+            var before = (timings != null) ? count(program) : 0;
+            var allocated = allocated();
+            var start = System.nanoTime();
+            
+            program = flat.optimise(program);
+            
+            if (timings != null)
+                timings.add(new Timing(pass, 1, System.nanoTime() - start, allocated(allocated), before, count(program)));
+            last = flat;
+        }
+        
+        return run(last.lift(program), i, timings, warnings);
+    }
+    
+    /**
+     * runs every pass over the given instructions, see {@link #run(byte[], List, List)}
+     */
+    public List<? extends Instruction> run(List<? extends Instruction> instructions, List<Timing> timings, List<String> warnings) {
+        return run(instructions, 0, timings, warnings);
+    }
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private List<? extends Instruction> run(List<? extends Instruction> instructions, int from, List<Timing> timings, List<String> warnings) {
+        for (var pass : passes.subList(from, passes.size())) {
+            var before = (timings != null) ? count(instructions) : 0;
+            var allocated = allocated();
+            var start = System.nanoTime();
+            
+            var iterations = 0;
+            while (true) {
+                var output = (iterations > 0 && pass.optimisation() instanceof RepeatableOptimisation repeatable)
+                        ? (List<? extends Instruction>) repeatable.reoptimise(instructions)
+                        : (List<? extends Instruction>) ((Optimisation) pass.optimisation()).optimise(instructions);
+                iterations++;
+                var done = !pass.repeat() || output.equals(instructions);
+                if (!done && iterations == MAX_ITERATIONS) {
+                    if (warnings != null)
+                        warnings.add("'" + pass.optimisation().getIdentifier() + "' was still changing the program after "
+                                + MAX_ITERATIONS + " runs, keeping what the last one gave");
+                    done = true;
+                }
+                instructions = output;
+                if (done)
+                    break;
+            }
+            
+            if (timings != null)
+                timings.add(new Timing(pass, iterations, System.nanoTime() - start, allocated(allocated), before, count(instructions)));
+        }
+        return instructions;
+    }
+    
+    private static long count(List<? extends Instruction> instructions) {
+        var count = 0L;
+        for (var instruction : instructions) {
+            count++;
+            if (instruction instanceof Instruction.Nested nested)
+                count += count(nested.instructions());
+        }
+        return count;
+    }
+    
+    // ENDs don't count, LOOPs already stand for the whole loop
+    private static long count(FlatProgram program) {
+        var count = 0L;
+        for (int i = 0; i < program.length(); i++) {
+            if (program.opcode(i) != FlatProgram.END)
+                count++;
+        }
+        return count;
+    }
+    
+    // bytes allocated by this thread so far, or -1 if the JVM doesn't keep track
+    private static long allocated() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean)
+            return bean.getCurrentThreadAllocatedBytes();
+        return -1;
+    }
+    
+    private static long allocated(long since) {
+        return (since >= 0) ? allocated() - since : -1;
+    }
+}
@@ -0,0 +1,17 @@
+package canaryprism.jbfc.optimise;
+
+import canaryprism.jbfc.Instruction;
+
+import java.util.List;
+
+/**
+ * an optimisation that can run over its own output even though it doesn't take it, so it can be repeated in a
+ * pipeline ({@link PassManager.Pass}) like one that does
+ */
+public interface RepeatableOptimisation<R extends Instruction> {
+    
+    /**
+     * optimises a program this optimisation returned again, giving back an equal list once there's nothing left to do
+     */
+    List<R> reoptimise(List<R> program);
+}
@@ -28,22 +28,12 @@ public sealed interface CollapseInstruction extends Instruction {
     }
     
     record Modify(int amount) implements CollapseInstruction {
-        public Modify {
-            amount %= 256;
-        }
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             code_builder
-                    .block(array.load())
-                    .block(pointer.load())
-                    .dup2()
-                    .iaload()
-                    .loadConstant(amount)
-                    .iadd()
-                    .loadConstant(255)
-                    .iand()
-                    .iastore();
+                    .block(array.incIndex(pointer, () -> (builder) -> builder
+                            .loadConstant(amount)));
         }
     }
     
@@ -56,7 +46,7 @@ public sealed interface CollapseInstruction extends Instruction {
         }
     }
     
-    record Loop(List<CollapseInstruction> instructions) implements CollapseInstruction {
+    record Loop(List<CollapseInstruction> instructions) implements CollapseInstruction, Nested {
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
@@ -64,9 +54,7 @@ public sealed interface CollapseInstruction extends Instruction {
             var left_label = code_builder.newLabel();
             code_builder
                     .labelBinding(left_label)
-                    .block(array.load())
-                    .block(pointer.load())
-                    .iaload()
+                    .block(array.loadIndex(pointer))
                     .ifeq(right_label);
             
             for (var instruction : instructions) {
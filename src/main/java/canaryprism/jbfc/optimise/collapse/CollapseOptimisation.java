@@ -1,12 +1,13 @@
 package canaryprism.jbfc.optimise.collapse;
 
 import canaryprism.jbfc.bf.BrainfuckInstruction;
+import canaryprism.jbfc.optimise.FlatOptimisation;
+import canaryprism.jbfc.optimise.FlatProgram;
 import canaryprism.jbfc.optimise.Optimisation;
 
-import java.util.LinkedList;
 import java.util.List;
 
-public final class CollapseOptimisation implements Optimisation<BrainfuckInstruction, CollapseInstruction> {
+public final class CollapseOptimisation implements Optimisation<BrainfuckInstruction, CollapseInstruction>, FlatOptimisation<CollapseInstruction> {
     
     @Override
     public Class<BrainfuckInstruction> getInput() {
@@ -20,58 +21,44 @@ public final class CollapseOptimisation implements Optimisation<BrainfuckInstruc
     
     @Override
     public List<CollapseInstruction> optimise(List<BrainfuckInstruction> input) {
-        var output = new LinkedList<CollapseInstruction>();
+        return lift(optimise(FlatProgram.of(input)));
+    }
+    
+    // merges every run of MODIFYs and every run of MOVEs into one
+    @Override
+    public FlatProgram optimise(FlatProgram program) {
+        var output = new FlatProgram();
         
-        for (int i = 0; i < input.size(); i++) {
-            var collapse_instruction = switch (input.get(i)) {
-                case BrainfuckInstruction.BasicInstruction instruction -> switch (instruction) {
-                    case INCREMENT, DECREMENT -> {
-                        var amount = (instruction == BrainfuckInstruction.BasicInstruction.INCREMENT)? 1 : -1;
-                        
-                        while (i + 1 < input.size()) {
-                            var next = input.get(i + 1);
-                            
-                            if (next == BrainfuckInstruction.BasicInstruction.INCREMENT)
-                                amount++;
-                            else if (next == BrainfuckInstruction.BasicInstruction.DECREMENT)
-                                amount--;
-                            else
-                                break;
-                            
-                            i++;
-                        }
-                        
-                        yield new CollapseInstruction.Modify(amount);
-                    }
-                    case LEFT, RIGHT -> {
-                        var amount = (instruction == BrainfuckInstruction.BasicInstruction.RIGHT)? 1 : -1;
-                        
-                        while (i + 1 < input.size()) {
-                            var next = input.get(i + 1);
-                            
-                            if (next == BrainfuckInstruction.BasicInstruction.LEFT)
-                                amount--;
-                            else if (next == BrainfuckInstruction.BasicInstruction.RIGHT)
-                                amount++;
-                            else
-                                break;
-                            
-                            i++;
-                        }
-                        
-                        yield new CollapseInstruction.Move(amount);
+        for (int i = 0; i < program.length(); i++) {
+            var opcode = program.opcode(i);
+            switch (opcode) {
+                case FlatProgram.MODIFY, FlatProgram.MOVE -> {
+                    var amount = program.operand(i);
+                    while (i + 1 < program.length() && program.opcode(i + 1) == opcode) {
+                        amount += program.operand(++i);
                     }
-                    case READ -> CollapseInstruction.Read.INSTANCE;
-                    case WRITE -> CollapseInstruction.Write.INSTANCE;
-                };
-                case BrainfuckInstruction.LoopInstruction loop -> new CollapseInstruction.Loop(optimise(loop.instructions()));
-            };
-            output.add(collapse_instruction);
+                    output.add(opcode, amount);
+                }
+                case FlatProgram.LOOP -> output.loop();
+                case FlatProgram.END -> output.end();
+                default -> output.add(opcode, program.operand(i));
+            }
         }
         
         return output;
     }
     
+    @Override
+    public List<CollapseInstruction> lift(FlatProgram program) {
+        return program.lift((i) -> switch (program.opcode(i)) {
+            case FlatProgram.MODIFY -> new CollapseInstruction.Modify(program.operand(i));
+            case FlatProgram.MOVE -> new CollapseInstruction.Move(program.operand(i));
+            case FlatProgram.READ -> CollapseInstruction.Read.INSTANCE;
+            case FlatProgram.WRITE -> CollapseInstruction.Write.INSTANCE;
+            default -> throw new IllegalArgumentException("collapse doesn't have opcode " + program.opcode(i));
+        }, CollapseInstruction.Loop::new);
+    }
+    
     @Override
     public String getIdentifier() {
         return "collapse";
@@ -7,14 +7,12 @@ import java.lang.classfile.ClassFile;
 import java.lang.classfile.CodeBuilder;
 import java.lang.classfile.TypeKind;
 import java.lang.constant.ClassDesc;
-import java.lang.constant.MethodTypeDesc;
 import java.util.Comparator;
 import java.util.List;
-import java.util.UUID;
 
 public sealed interface FlowInstruction extends Instruction {
     
-    enum Write implements FlowInstruction {
+    enum Write implements FlowInstruction, Straight {
         INSTANCE;
         
         @Override
@@ -22,8 +20,14 @@ public sealed interface FlowInstruction extends Instruction {
             code_builder
                     .block(output.write(array, pointer));
         }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            code_builder
+                    .block(output.write(array, cells.sync(0)));
+        }
     }
-    enum Read implements FlowInstruction {
+    enum Read implements FlowInstruction, Straight {
         INSTANCE;
         
         @Override
@@ -31,53 +35,62 @@ public sealed interface FlowInstruction extends Instruction {
             code_builder
                     .block(input.read(array, pointer));
         }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            code_builder
+                    .block(input.read(array, cells.discard(0)));
+        }
     }
     
-    record Modify(int amount) implements FlowInstruction {
-        public Modify {
-            amount %= 256;
-        }
+    record Modify(int amount) implements FlowInstruction, Straight {
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             code_builder
-                    .block(array.load())
-                    .block(pointer.load())
-                    .dup2()
-                    .iaload()
-                    .loadConstant(amount)
-                    .iadd()
-                    .loadConstant(255)
-                    .iand()
-                    .iastore();
+                    .block(array.incIndex(pointer, () -> (builder) -> builder
+                            .loadConstant(amount)));
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            cells.add(0, (builder) -> builder
+                    .loadConstant(amount));
         }
     }
     
-    record Set(int value) implements FlowInstruction {
-        public Set {
-            value &= 255;
-        }
+    record Set(int value) implements FlowInstruction, Straight {
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             code_builder
-                    .block(array.load())
-                    .block(pointer.load())
+                    .block(array.storeIndex(pointer, () -> (builder) -> builder
+                            .loadConstant(value)));
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            code_builder
                     .loadConstant(value)
-                    .iastore();
+                    .istore(cells.overwrite(0));
         }
     }
     
-    record Move(int amount) implements FlowInstruction {
+    record Move(int amount) implements FlowInstruction, Straight {
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             code_builder
                     .block(pointer.inc(amount));
         }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            cells.move(amount);
+        }
     }
     
-    record Transfer(List<Target> targets) implements FlowInstruction {
+    record Transfer(List<Target> targets) implements FlowInstruction, Straight {
         
         public record Target(int offset, int multiplier) {
             public Target {
@@ -99,69 +112,68 @@ public sealed interface FlowInstruction extends Instruction {
             code_builder.block((block_builder) -> {
 
     //             dam complicated instruction to implement mm
-                block_builder
-                        .block(array.load())
-                        .block(pointer.load());
-                
                 var value = block_builder.allocateLocal(TypeKind.INT);
                 
                 block_builder
-                        .dup2()
-                        .iaload()
+                        .block(array.loadIndex(pointer))
                         .istore(value);
                 
-                for (var target : targets) {
+                if (!targets.isEmpty())
                     block_builder
-                            .dup2()
-                            .loadConstant(target.offset())
-                            .iadd()
-                            .dup2()
-                            .iaload()
-                            .iload(value);
-                    if (target.multiplier() != 0)
-                        block_builder
-                                .loadConstant(target.multiplier())
-                                .imul();
+                            .block(pointer.reserve(targets.getFirst().offset(), targets.getLast().offset()));
+                
+                for (var target : targets) {
                     block_builder
-                            .iadd()
-                            .loadConstant(255)
-                            .iand()
-                            .iastore();
+                            .block(array.incIndex(pointer.offset(target.offset()), () -> (builder) -> builder
+                                    .iload(value)
+                                    .loadConstant(target.multiplier())
+                                    .imul()));
                 }
                 
                 block_builder
-                        .loadConstant(0)
-                        .iastore();
+                        .block(array.storeIndex(pointer, () -> (builder) -> builder
+                                .loadConstant(0)));
             });
         
         }
         
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            var source = cells.load(0);
+            for (var target : targets) {
+                cells.add(target.offset(), (builder) -> builder
+                        .iload(source)
+                        .loadConstant(target.multiplier())
+                        .imul());
+            }
+            code_builder
+                    .iconst_0()
+                    .istore(cells.overwrite(0));
+        }
     }
     
-    record Loop(List<FlowInstruction> instructions, String name) implements FlowInstruction {
+    record Loop(List<FlowInstruction> instructions, String name) implements FlowInstruction, Nested, Outlined {
         
         public Loop(List<FlowInstruction> instructions) {
-            this(instructions, "loop" + UUID.randomUUID());
+            this(instructions, Instruction.methodName("loop", instructions));
         }
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             code_builder
-                    .invokestatic(self, name, MethodTypeDesc.ofDescriptor("()V"));
+                    .block(pointer.invoke(self, name));
         }
         
         @Override
         public void writeClass(ClassBuilder class_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             class_builder
-                    .withMethod(name, MethodTypeDesc.ofDescriptor("()V"), ClassFile.ACC_STATIC, (method_builder) -> method_builder
+                    .withMethod(name, pointer.methodType(), ClassFile.ACC_STATIC, (method_builder) -> method_builder
                             .withCode((code_builder) -> {
                                 var right_label = code_builder.newLabel();
                                 var left_label = code_builder.newLabel();
                                 code_builder
                                         .labelBinding(left_label)
-                                        .block(array.load())
-                                        .block(pointer.load())
-                                        .iaload()
+                                        .block(array.loadIndex(pointer))
                                         .ifeq(right_label);
                                 
                                 for (var instruction : instructions) {
@@ -171,7 +183,7 @@ public sealed interface FlowInstruction extends Instruction {
                                 code_builder
                                         .goto_(left_label)
                                         .labelBinding(right_label)
-                                        .return_();
+                                        .block(pointer.return_());
                             }));
             
             for (var instruction : instructions) {
@@ -184,16 +196,8 @@ public sealed interface FlowInstruction extends Instruction {
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
-            var start = code_builder.newLabel();
-            var end = code_builder.newLabel();
-            
             code_builder
-                    .labelBinding(start)
-                    .block(array.loadIndex(pointer))
-                    .ifeq(end)
-                    .block(pointer.inc(step))
-                    .goto_(start)
-                    .labelBinding(end);
+                    .block(array.findZero(pointer, step));
         }
     }
 }
@@ -1,12 +1,30 @@
 package canaryprism.jbfc.optimise.flow;
 
+import canaryprism.jbfc.optimise.FlatOptimisation;
+import canaryprism.jbfc.optimise.FlatProgram;
 import canaryprism.jbfc.optimise.Optimisation;
+import canaryprism.jbfc.optimise.RepeatableOptimisation;
 import canaryprism.jbfc.optimise.collapse.CollapseInstruction;
 
 import java.util.*;
-import java.util.stream.Stream;
 
-public final class FlowOptimisation implements Optimisation<CollapseInstruction, FlowInstruction> {
+public final class FlowOptimisation implements Optimisation<CollapseInstruction, FlowInstruction>, FlatOptimisation<FlowInstruction>,
+        RepeatableOptimisation<FlowInstruction> {
+    
+    private final int cell_bits;
+    
+    public FlowOptimisation() {
+        this(8);
+    }
+    
+    private FlowOptimisation(int cell_bits) {
+        this.cell_bits = cell_bits;
+    }
+    
+    @Override
+    public FlowOptimisation forCellSize(int bits) {
+        return new FlowOptimisation(bits);
+    }
     
     @Override
     public Class<CollapseInstruction> getInput() {
@@ -20,89 +38,181 @@ public final class FlowOptimisation implements Optimisation<CollapseInstruction,
     
     @Override
     public List<FlowInstruction> optimise(List<CollapseInstruction> input) {
-        var output = new LinkedList<FlowInstruction>();
+        return lift(optimise(FlatProgram.of(input)));
+    }
+    
+    @Override
+    public List<FlowInstruction> reoptimise(List<FlowInstruction> program) {
+        return lift(optimise(FlatProgram.of(program)));
+    }
+    
+    // takes collapse level programs, and flow level ones so it can run over its own output
+    @Override
+    public FlatProgram optimise(FlatProgram program) {
+        var output = new FlatProgram();
         
-        for (var collapseInstruction : input) {
-            var instruction = switch (collapseInstruction) {
-                case CollapseInstruction.Write _ -> FlowInstruction.Write.INSTANCE;
-                case CollapseInstruction.Read _ -> FlowInstruction.Read.INSTANCE;
-                case CollapseInstruction.Modify(var amount) -> {
-                    var last = output.peekLast();
+        for (int i = 0; i < program.length(); i++) {
+            var opcode = program.opcode(i);
+            switch (opcode) {
+                case FlatProgram.MODIFY -> {
+                    var amount = program.operand(i);
+                    var last = last(output);
+                    var last_opcode = (last != -1) ? output.opcode(last) : -1;
                     
-                    if (last instanceof FlowInstruction.Set(var last_amount)) {
-                        output.removeLast();
-                        yield new FlowInstruction.Set(last_amount + amount);
+                    if (last_opcode == FlatProgram.SET) {
+                        output.setOperand(last, mask(output.operand(last) + amount));
+                    } else if (last_opcode == FlatProgram.END || last_opcode == FlatProgram.TRANSFER || last_opcode == FlatProgram.FIND_ZERO) {
+                        output.add(FlatProgram.SET, mask(amount));
+                    } else {
+                        output.add(FlatProgram.MODIFY, wrap(amount));
                     }
-                    if (last instanceof FlowInstruction.Loop || last instanceof FlowInstruction.Transfer || last instanceof FlowInstruction.FindZero)
-                        yield new FlowInstruction.Set(amount);
-                    
-                    yield new FlowInstruction.Modify(amount);
                 }
-                case CollapseInstruction.Move(var amount) -> new FlowInstruction.Move(amount);
-                case CollapseInstruction.Loop loop -> {
-                    var instructions = optimise(loop.instructions());
-                    if (getTotalMovement(instructions) == 0 && isModifyMove(instructions)) {
-                        var targets = getTransferTargets(instructions);
-                        if (targets.getOrDefault(0, 0) instanceof Integer origin_modification && origin_modification != 0) {
-                            if (targets.size() != 1) {
-                                // transfer
-                                if (origin_modification == -1)
-                                    yield new FlowInstruction.Transfer(targets.entrySet()
-                                            .stream()
-                                            .filter((e) -> e.getKey() != 0)
-                                            .map((e) -> new FlowInstruction.Transfer.Target(e.getKey(), e.getValue()))
-                                            .toList());
-                            } else {
-                                // set
-                                
-                                /*
-                                 * here i'll only hardcode to Set 0 because when a Modify is read it collapses the last output instruction
-                                 * if it is a Set and turns itself into a Set if it's a Loop or Transfer
-                                 */
-                                yield new FlowInstruction.Set(0);
-                            }
-                        }
-                    } else {
-                        if (isModifyMove(instructions)) {
-                            int move = getTotalMovement(instructions);
-                            if (move != 0 && getTransferTargets(instructions).isEmpty()) {
-                                yield new FlowInstruction.FindZero(move);
-                            }
-                        }
+                case FlatProgram.SET -> {
+                    var last = last(output);
+                    // whatever the Modify or Set before this did gets overwritten
+                    if (last != -1 && (output.opcode(last) == FlatProgram.MODIFY || output.opcode(last) == FlatProgram.SET))
+                        output.truncate(last);
+                    output.add(FlatProgram.SET, mask(program.operand(i)));
+                }
+                case FlatProgram.TRANSFER -> {
+                    var pairs = new int[program.jump(i) * 2];
+                    for (int target = 0; target < program.jump(i); target++) {
+                        pairs[target * 2] = program.targetOffset(i, target);
+                        pairs[target * 2 + 1] = program.targetMultiplier(i, target);
                     }
-                    
-                    yield new FlowInstruction.Loop(instructions);
+                    output.addTransfer(pairs);
                 }
-            };
-            
-            output.add(instruction);
+                case FlatProgram.MOVE, FlatProgram.READ, FlatProgram.WRITE, FlatProgram.FIND_ZERO -> output.add(opcode, program.operand(i));
+                case FlatProgram.LOOP -> output.loop();
+                case FlatProgram.END -> end(output);
+                default -> throw new IllegalArgumentException("flow doesn't take opcode " + opcode);
+            }
         }
         
         return output;
     }
     
-    private int getTotalMovement(List<FlowInstruction> instructions) {
-        return instructions.stream()
-                .flatMap((e) -> Stream.ofNullable((e instanceof FlowInstruction.Move(var amount)) ? amount : null))
-                .reduce(0, Integer::sum);
+    // whatever came right before the end of output in the same loop body, or -1
+    private static int last(FlatProgram output) {
+        return (output.length() > output.openLoop() + 1) ? output.length() - 1 : -1;
     }
     
-    private boolean isModifyMove(List<FlowInstruction> instructions) {
-        return instructions.stream()
-                .noneMatch((e) -> !(e instanceof FlowInstruction.Modify) && !(e instanceof FlowInstruction.Move));
+    // ends the innermost open loop of output, its body has already been optimised so if it's only MODIFYs and MOVEs
+    // it can be replaced with what it does
+    private void end(FlatProgram output) {
+        var start = output.openLoop();
+        
+        var modify_move = true;
+        var movement = 0;
+        var targets = new HashMap<Integer, Integer>();
+        for (int i = start + 1; i < output.length(); i++) {
+            switch (output.opcode(i)) {
+                case FlatProgram.MODIFY -> targets.merge(movement, output.operand(i), Integer::sum);
+                case FlatProgram.MOVE -> movement += output.operand(i);
+                default -> modify_move = false;
+            }
+        }
+        
+        if (modify_move && movement == 0) {
+            var origin_modification = targets.getOrDefault(0, 0);
+            if (origin_modification != 0) {
+                if (targets.size() != 1) {
+                    // transfer
+                    var transfer = getTransfer(origin_modification, targets);
+                    if (transfer.isPresent()) {
+                        var transfer_targets = transfer.get().targets();
+                        var pairs = new int[transfer_targets.size() * 2];
+                        for (int i = 0; i < transfer_targets.size(); i++) {
+                            pairs[i * 2] = transfer_targets.get(i).offset();
+                            pairs[i * 2 + 1] = transfer_targets.get(i).multiplier();
+                        }
+                        output.truncate(start);
+                        output.addTransfer(pairs);
+                        return;
+                    }
+                } else {
+                    // set
+                    
+                    /*
+                     * here i'll only hardcode to Set 0 because when a Modify is read it collapses the last output instruction
+                     * if it is a Set and turns itself into a Set if it's a Loop or Transfer
+                     */
+                    output.truncate(start);
+                    output.add(FlatProgram.SET, 0);
+                    return;
+                }
+            }
+        } else if (modify_move && movement != 0 && targets.isEmpty()) {
+            output.truncate(start);
+            output.add(FlatProgram.FIND_ZERO, movement);
+            return;
+        }
+        
+        output.end();
     }
     
-    private Map<Integer, Integer> getTransferTargets(List<FlowInstruction> instructions) {
-        var map = new HashMap<Integer, Integer>();
-        var offset = 0;
-        for (var instruction : instructions) {
-            switch (instruction) {
-                case FlowInstruction.Modify(var amount) -> map.compute(offset, (_, e) -> (e != null) ? e + amount : amount);
-                case FlowInstruction.Move(var amount) -> offset += amount;
-                default -> throw new IllegalArgumentException("non modify-move instruction list");
+    @Override
+    public List<FlowInstruction> lift(FlatProgram program) {
+        return program.lift((i) -> switch (program.opcode(i)) {
+            case FlatProgram.MODIFY -> new FlowInstruction.Modify(program.operand(i));
+            case FlatProgram.SET -> new FlowInstruction.Set(program.operand(i));
+            case FlatProgram.MOVE -> new FlowInstruction.Move(program.operand(i));
+            case FlatProgram.READ -> FlowInstruction.Read.INSTANCE;
+            case FlatProgram.WRITE -> FlowInstruction.Write.INSTANCE;
+            case FlatProgram.FIND_ZERO -> new FlowInstruction.FindZero(program.operand(i));
+            case FlatProgram.TRANSFER -> {
+                var targets = new ArrayList<FlowInstruction.Transfer.Target>();
+                for (int target = 0; target < program.jump(i); target++) {
+                    targets.add(new FlowInstruction.Transfer.Target(program.targetOffset(i, target), program.targetMultiplier(i, target)));
+                }
+                yield new FlowInstruction.Transfer(targets);
             }
+            default -> throw new IllegalArgumentException("flow doesn't have opcode " + program.opcode(i));
+        }, FlowInstruction.Loop::new);
+    }
+    
+    /*
+     * a loop that changes the origin by step runs n times where value + n * step = 0 (mod 2^cell_bits),
+     * writing step as 2^shift * odd that's n * 2^shift = -value * odd^-1 so a target modified by m in every iteration
+     * ends up with value * (-odd^-1 * m / 2^shift) added, which is a normal Transfer as long as m is a multiple of 2^shift
+     *
+     * like Set 0 for [--] this assumes the loop terminates (when shift > 0 the origin has to start as a multiple of 2^shift)
+     */
+    private Optional<FlowInstruction.Transfer> getTransfer(int step, Map<Integer, Integer> targets) {
+        if (wrap(step) == 0)
+            return Optional.empty();
+        var shift = Integer.numberOfTrailingZeros(step);
+        var inverse = inverse(step >> shift);
+        
+        var transfer_targets = new ArrayList<FlowInstruction.Transfer.Target>();
+        for (var entry : targets.entrySet()) {
+            if (entry.getKey() == 0)
+                continue;
+            if ((entry.getValue() & ((1 << shift) - 1)) != 0)
+                return Optional.empty();
+            var multiplier = wrap(-inverse * (entry.getValue() >> shift));
+            if (multiplier != 0)
+                transfer_targets.add(new FlowInstruction.Transfer.Target(entry.getKey(), multiplier));
         }
-        return map;
+        return Optional.of(new FlowInstruction.Transfer(transfer_targets));
+    }
+    
+    // the inverse of an odd number mod 2^32 (and so mod every smaller power of 2 too), by newton's method
+    private static int inverse(int odd) {
+        var inverse = odd;
+        for (int i = 0; i < 5; i++) {
+            inverse *= 2 - odd * inverse;
+        }
+        return inverse;
+    }
+    
+    // keeps the sign, so a Modify of -1 stays -1
+    private int wrap(int amount) {
+        return (cell_bits < Integer.SIZE) ? amount % (1 << cell_bits) : amount;
+    }
+    
+    private int mask(int value) {
+        return (cell_bits < Integer.SIZE) ? value & ((1 << cell_bits) - 1) : value;
     }
     
     @Override
@@ -0,0 +1,213 @@
+package canaryprism.jbfc.optimise.offset;
+
+import canaryprism.jbfc.Instruction;
+
+import java.lang.classfile.ClassBuilder;
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.TypeKind;
+import java.lang.constant.ClassDesc;
+import java.util.Comparator;
+import java.util.List;
+
+// every offset here is relative to where the pointer actually is, which only changes on Move, Loop and FindZero
+public sealed interface OffsetInstruction extends Instruction {
+    
+    record Write(int offset) implements OffsetInstruction, Straight {
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+            code_builder
+                    .block(output.write(array, pointer.offset(offset)));
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            code_builder
+                    .block(output.write(array, cells.sync(offset)));
+        }
+    }
+    
+    record Read(int offset) implements OffsetInstruction, Straight {
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+            code_builder
+                    .block(input.read(array, pointer.offset(offset)));
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            code_builder
+                    .block(input.read(array, cells.discard(offset)));
+        }
+    }
+    
+    record Modify(int offset, int amount) implements OffsetInstruction, Straight {
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+            code_builder
+                    .block(array.incIndex(pointer.offset(offset), () -> (builder) -> builder
+                            .loadConstant(amount)));
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            cells.add(offset, (builder) -> builder
+                    .loadConstant(amount));
+        }
+    }
+    
+    record Set(int offset, int value) implements OffsetInstruction, Straight {
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+            code_builder
+                    .block(array.storeIndex(pointer.offset(offset), () -> (builder) -> builder
+                            .loadConstant(value)));
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            code_builder
+                    .loadConstant(value)
+                    .istore(cells.overwrite(offset));
+        }
+    }
+    
+    record Move(int amount) implements OffsetInstruction, Straight {
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+            code_builder
+                    .block(pointer.inc(amount));
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            cells.move(amount);
+        }
+    }
+    
+    // makes sure every cell the following instructions touch exists before the first one runs, so they don't each have to
+    record Reserve(int low, int high) implements OffsetInstruction, Straight {
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+            code_builder
+                    .block(pointer.reserve(low, high));
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            cells.reserve(low, high);
+        }
+    }
+    
+    // target offsets are relative to the cell being transferred from
+    record Transfer(int offset, List<Transfer.Target> targets) implements OffsetInstruction, Straight {
+        
+        public record Target(int offset, int multiplier) {
+            public Target {
+                if (offset == 0)
+                    throw new IllegalArgumentException("offset can't be 0");
+                if (multiplier == 0)
+                    throw new IllegalArgumentException("multiplier can't be 0");
+            }
+        }
+        
+        public Transfer {
+            targets = targets.stream()
+                    .sorted(Comparator.comparing(Target::offset))
+                    .toList();
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+            var source = pointer.offset(offset);
+            code_builder.block((block_builder) -> {
+                var value = block_builder.allocateLocal(TypeKind.INT);
+                
+                block_builder
+                        .block(array.loadIndex(source))
+                        .istore(value);
+                
+                for (var target : targets) {
+                    block_builder
+                            .block(array.incIndex(source.offset(target.offset()), () -> (builder) -> builder
+                                    .iload(value)
+                                    .loadConstant(target.multiplier())
+                                    .imul()));
+                }
+                
+                block_builder
+                        .block(array.storeIndex(source, () -> (builder) -> builder
+                                .loadConstant(0)));
+            });
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            var source = cells.load(offset);
+            for (var target : targets) {
+                cells.add(offset + target.offset(), (builder) -> builder
+                        .iload(source)
+                        .loadConstant(target.multiplier())
+                        .imul());
+            }
+            code_builder
+                    .iconst_0()
+                    .istore(cells.overwrite(offset));
+        }
+    }
+    
+    record Loop(List<OffsetInstruction> instructions, String name) implements OffsetInstruction, Nested, Outlined {
+        
+        public Loop(List<OffsetInstruction> instructions) {
+            this(instructions, Instruction.methodName("loop", instructions));
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+            code_builder
+                    .block(pointer.invoke(self, name));
+        }
+        
+        @Override
+        public void writeClass(ClassBuilder class_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+            class_builder
+                    .withMethod(name, pointer.methodType(), ClassFile.ACC_STATIC, (method_builder) -> method_builder
+                            .withCode((code_builder) -> {
+                                var right_label = code_builder.newLabel();
+                                var left_label = code_builder.newLabel();
+                                code_builder
+                                        .labelBinding(left_label)
+                                        .block(array.loadIndex(pointer))
+                                        .ifeq(right_label);
+                                
+                                for (var instruction : instructions) {
+                                    instruction.writeCode(code_builder, self, array, pointer, input, output);
+                                }
+                                
+                                code_builder
+                                        .goto_(left_label)
+                                        .labelBinding(right_label)
+                                        .block(pointer.return_());
+                            }));
+            
+            for (var instruction : instructions) {
+                instruction.writeClass(class_builder, self, array, pointer, input, output);
+            }
+        }
+    }
+    
+    record FindZero(int step) implements OffsetInstruction {
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+            code_builder
+                    .block(array.findZero(pointer, step));
+        }
+    }
+}
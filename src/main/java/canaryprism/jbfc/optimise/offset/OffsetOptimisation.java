@@ -0,0 +1,210 @@
+package canaryprism.jbfc.optimise.offset;
+
+import canaryprism.jbfc.optimise.Optimisation;
+import canaryprism.jbfc.optimise.RepeatableOptimisation;
+import canaryprism.jbfc.optimise.flow.FlowInstruction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+public final class OffsetOptimisation implements Optimisation<FlowInstruction, OffsetInstruction>, RepeatableOptimisation<OffsetInstruction> {
+    
+    private final int cell_bits;
+    
+    public OffsetOptimisation() {
+        this(8);
+    }
+    
+    private OffsetOptimisation(int cell_bits) {
+        this.cell_bits = cell_bits;
+    }
+    
+    @Override
+    public OffsetOptimisation forCellSize(int bits) {
+        return new OffsetOptimisation(bits);
+    }
+    
+    @Override
+    public Class<FlowInstruction> getInput() {
+        return FlowInstruction.class;
+    }
+    
+    @Override
+    public Class<OffsetInstruction> getOutput() {
+        return OffsetInstruction.class;
+    }
+    
+    @Override
+    public List<OffsetInstruction> optimise(List<FlowInstruction> input) {
+        return optimise(input, false);
+    }
+    
+    private List<OffsetInstruction> optimise(List<FlowInstruction> input, boolean loop) {
+        var output = new ArrayList<OffsetInstruction>();
+        var segment = new Segment();
+        
+        for (var instruction : input) {
+            switch (instruction) {
+                case FlowInstruction.Move(var amount) -> segment.offset += amount;
+                case FlowInstruction.Modify(var amount) -> segment.modify(segment.offset, amount);
+                case FlowInstruction.Set(var value) -> segment.set(segment.offset, value);
+                case FlowInstruction.Write _ -> {
+                    segment.flush(segment.offset);
+                    segment.add(new OffsetInstruction.Write(segment.offset), segment.offset, segment.offset);
+                }
+                case FlowInstruction.Read _ -> {
+                    // whatever was going to happen to the cell gets overwritten anyway
+                    segment.pending.remove(segment.offset);
+                    segment.add(new OffsetInstruction.Read(segment.offset), segment.offset, segment.offset);
+                }
+                case FlowInstruction.Transfer(var targets) -> segment.transfer(segment.offset, targets.stream()
+                        .map((target) -> new OffsetInstruction.Transfer.Target(target.offset(), target.multiplier()))
+                        .toList());
+                // the pointer has to really be where it is before these since they move it by an unknown amount
+                case FlowInstruction.Loop(var instructions, var _) -> {
+                    segment.end(output, true);
+                    segment = new Segment();
+                    output.add(new OffsetInstruction.Loop(optimise(instructions, true)));
+                }
+                case FlowInstruction.FindZero(var step) -> {
+                    segment.end(output, true);
+                    segment = new Segment();
+                    output.add(new OffsetInstruction.FindZero(step));
+                }
+            }
+        }
+        
+        // nothing looks at the pointer after the program ends
+        segment.end(output, loop);
+        
+        return output;
+    }
+    
+    // the same thing over offset level instructions, whose offsets are relative to the segment's start
+    @Override
+    public List<OffsetInstruction> reoptimise(List<OffsetInstruction> program) {
+        return reoptimise(program, false);
+    }
+    
+    private List<OffsetInstruction> reoptimise(List<OffsetInstruction> input, boolean loop) {
+        var output = new ArrayList<OffsetInstruction>();
+        var segment = new Segment();
+        
+        for (var instruction : input) {
+            switch (instruction) {
+                case OffsetInstruction.Move(var amount) -> segment.offset += amount;
+                case OffsetInstruction.Modify(var offset, var amount) -> segment.modify(segment.offset + offset, amount);
+                case OffsetInstruction.Set(var offset, var value) -> segment.set(segment.offset + offset, value);
+                case OffsetInstruction.Write(var offset) -> {
+                    segment.flush(segment.offset + offset);
+                    segment.add(new OffsetInstruction.Write(segment.offset + offset), segment.offset + offset, segment.offset + offset);
+                }
+                case OffsetInstruction.Read(var offset) -> {
+                    segment.pending.remove(segment.offset + offset);
+                    segment.add(new OffsetInstruction.Read(segment.offset + offset), segment.offset + offset, segment.offset + offset);
+                }
+                case OffsetInstruction.Transfer(var offset, var targets) -> segment.transfer(segment.offset + offset, targets);
+                // the segment works out what it has to reserve by itself
+                case OffsetInstruction.Reserve _ -> {}
+                case OffsetInstruction.Loop(var instructions, var _) -> {
+                    segment.end(output, true);
+                    segment = new Segment();
+                    output.add(new OffsetInstruction.Loop(reoptimise(instructions, true)));
+                }
+                case OffsetInstruction.FindZero(var step) -> {
+                    segment.end(output, true);
+                    segment = new Segment();
+                    output.add(new OffsetInstruction.FindZero(step));
+                }
+            }
+        }
+        
+        segment.end(output, loop);
+        
+        return output;
+    }
+    
+    // a run of instructions between two places where the pointer really moves
+    private final class Segment {
+        
+        int offset = 0;
+        
+        int low = 0;
+        int high = 0;
+        
+        final List<OffsetInstruction> instructions = new ArrayList<>();
+        
+        // the Modify or Set that hasn't been emitted yet for each offset, these get emitted in order of offset
+        final TreeMap<Integer, OffsetInstruction> pending = new TreeMap<>();
+        
+        void modify(int index, int amount) {
+            touch(index, index);
+            pending.compute(index, (_, last) -> switch (last) {
+                case null -> (wrap(amount) != 0) ? new OffsetInstruction.Modify(index, wrap(amount)) : null;
+                case OffsetInstruction.Modify(var _, var last_amount) ->
+                        (wrap(last_amount + amount) != 0) ? new OffsetInstruction.Modify(index, wrap(last_amount + amount)) : null;
+                case OffsetInstruction.Set(var _, var value) -> new OffsetInstruction.Set(index, mask(value + amount));
+                default -> throw new IllegalStateException("unexpected pending instruction " + last);
+            });
+        }
+        
+        void set(int index, int value) {
+            touch(index, index);
+            pending.put(index, new OffsetInstruction.Set(index, value));
+        }
+        
+        void transfer(int index, List<OffsetInstruction.Transfer.Target> targets) {
+            flush(index);
+            for (var target : targets) {
+                flush(index + target.offset());
+            }
+            var first = targets.isEmpty() ? 0 : targets.getFirst().offset();
+            var last = targets.isEmpty() ? 0 : targets.getLast().offset();
+            add(new OffsetInstruction.Transfer(index, targets), index + Math.min(0, first), index + Math.max(0, last));
+        }
+        
+        void add(OffsetInstruction instruction, int low, int high) {
+            touch(low, high);
+            instructions.add(instruction);
+        }
+        
+        // emits what's pending for the cell at index, for instructions that look at it
+        void flush(int index) {
+            var instruction = pending.remove(index);
+            if (instruction != null)
+                instructions.add(instruction);
+        }
+        
+        void end(List<OffsetInstruction> output, boolean move) {
+            instructions.addAll(pending.values());
+            pending.clear();
+            
+            if (!instructions.isEmpty() && (low != 0 || high != 0))
+                output.add(new OffsetInstruction.Reserve(low, high));
+            output.addAll(instructions);
+            
+            if (move && offset != 0)
+                output.add(new OffsetInstruction.Move(offset));
+        }
+        
+        private void touch(int low, int high) {
+            this.low = Math.min(this.low, low);
+            this.high = Math.max(this.high, high);
+        }
+    }
+    
+    // keeps the sign, so a Modify of -1 stays -1
+    private int wrap(int amount) {
+        return (cell_bits < Integer.SIZE) ? amount % (1 << cell_bits) : amount;
+    }
+    
+    private int mask(int value) {
+        return (cell_bits < Integer.SIZE) ? value & ((1 << cell_bits) - 1) : value;
+    }
+    
+    @Override
+    public String getIdentifier() {
+        return "offset";
+    }
+}
@@ -3,23 +3,26 @@ package canaryprism.jbfc.optimise.state;
 import canaryprism.jbfc.Instruction;
 import org.apache.commons.lang3.ArrayUtils;
 
-import java.io.PrintStream;
 import java.lang.classfile.ClassBuilder;
 import java.lang.classfile.ClassFile;
 import java.lang.classfile.CodeBuilder;
 import java.lang.classfile.TypeKind;
 import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDesc;
+import java.lang.constant.ConstantDescs;
+import java.lang.constant.DirectMethodHandleDesc;
+import java.lang.constant.DynamicConstantDesc;
+import java.lang.constant.MethodHandleDesc;
 import java.lang.constant.MethodTypeDesc;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
-import java.util.UUID;
-import java.util.function.Consumer;
-import java.util.stream.Gatherers;
 
 public sealed interface StateInstruction extends Instruction {
     
-    enum Write implements StateInstruction {
+    enum Write implements StateInstruction, Straight {
         INSTANCE;
         
         @Override
@@ -27,8 +30,14 @@ public sealed interface StateInstruction extends Instruction {
             code_builder
                     .block(output.write(array, pointer));
         }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            code_builder
+                    .block(output.write(array, cells.sync(0)));
+        }
     }
-    enum Read implements StateInstruction {
+    enum Read implements StateInstruction, Straight {
         INSTANCE;
         
         @Override
@@ -36,55 +45,64 @@ public sealed interface StateInstruction extends Instruction {
             code_builder
                     .block(input.read(array, pointer));
         }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            code_builder
+                    .block(input.read(array, cells.discard(0)));
+        }
     }
     
-    record Modify(int amount) implements StateInstruction {
-        public Modify {
-            amount %= 256;
-        }
+    record Modify(int amount) implements StateInstruction, Straight {
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             code_builder
-                    .block(array.load())
-                    .block(pointer.load())
-                    .dup2()
-                    .iaload()
-                    .loadConstant(amount)
-                    .iadd()
-                    .loadConstant(255)
-                    .iand()
-                    .iastore();
+                    .block(array.incIndex(pointer, () -> (builder) -> builder
+                            .loadConstant(amount)));
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            cells.add(0, (builder) -> builder
+                    .loadConstant(amount));
         }
     }
     
-    record Set(int value) implements StateInstruction {
-        public Set {
-            value &= 255;
-        }
+    record Set(int value) implements StateInstruction, Straight {
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             code_builder
-                    .block(array.load())
-                    .block(pointer.load())
+                    .block(array.storeIndex(pointer, () -> (builder) -> builder
+                            .loadConstant(value)));
+        }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            code_builder
                     .loadConstant(value)
-                    .iastore();
+                    .istore(cells.overwrite(0));
         }
     }
     
-    record Move(int amount) implements StateInstruction {
+    record Move(int amount) implements StateInstruction, Straight {
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             code_builder
                     .block(pointer.inc(amount));
         }
+        
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            cells.move(amount);
+        }
     }
     
-    record Transfer(List<Transfer.Target> targets) implements StateInstruction {
+    record Transfer(List<Transfer.Target> targets) implements StateInstruction, Straight {
         
-        record Target(int offset, int multiplier) {
+        public record Target(int offset, int multiplier) {
             public Target {
                 if (offset == 0)
                     throw new IllegalArgumentException("offset can't be 0");
@@ -104,69 +122,68 @@ public sealed interface StateInstruction extends Instruction {
             code_builder.block((block_builder) -> {
                 
                 //             dam complicated instruction to implement mm
-                block_builder
-                        .block(array.load())
-                        .block(pointer.load());
-                
                 var value = block_builder.allocateLocal(TypeKind.INT);
                 
                 block_builder
-                        .dup2()
-                        .iaload()
+                        .block(array.loadIndex(pointer))
                         .istore(value);
                 
-                for (var target : targets) {
+                if (!targets.isEmpty())
                     block_builder
-                            .dup2()
-                            .loadConstant(target.offset())
-                            .iadd()
-                            .dup2()
-                            .iaload()
-                            .iload(value);
-                    if (target.multiplier() != 0)
-                        block_builder
-                                .loadConstant(target.multiplier())
-                                .imul();
+                            .block(pointer.reserve(targets.getFirst().offset(), targets.getLast().offset()));
+                
+                for (var target : targets) {
                     block_builder
-                            .iadd()
-                            .loadConstant(255)
-                            .iand()
-                            .iastore();
+                            .block(array.incIndex(pointer.offset(target.offset()), () -> (builder) -> builder
+                                    .iload(value)
+                                    .loadConstant(target.multiplier())
+                                    .imul()));
                 }
                 
                 block_builder
-                        .loadConstant(0)
-                        .iastore();
+                        .block(array.storeIndex(pointer, () -> (builder) -> builder
+                                .loadConstant(0)));
             });
             
         }
         
+        @Override
+        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Cells cells, Input input, Output output) {
+            var source = cells.load(0);
+            for (var target : targets) {
+                cells.add(target.offset(), (builder) -> builder
+                        .iload(source)
+                        .loadConstant(target.multiplier())
+                        .imul());
+            }
+            code_builder
+                    .iconst_0()
+                    .istore(cells.overwrite(0));
+        }
     }
     
-    record Loop(List<StateInstruction> instructions, String name) implements StateInstruction {
+    record Loop(List<StateInstruction> instructions, String name) implements StateInstruction, Nested, Outlined {
         
         public Loop(List<StateInstruction> instructions) {
-            this(instructions, "loop" + UUID.randomUUID());
+            this(instructions, Instruction.methodName("loop", instructions));
         }
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             code_builder
-                    .invokestatic(self, name, MethodTypeDesc.ofDescriptor("()V"));
+                    .block(pointer.invoke(self, name));
         }
         
         @Override
         public void writeClass(ClassBuilder class_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             class_builder
-                    .withMethod(name, MethodTypeDesc.ofDescriptor("()V"), ClassFile.ACC_STATIC, (method_builder) -> method_builder
+                    .withMethod(name, pointer.methodType(), ClassFile.ACC_STATIC, (method_builder) -> method_builder
                             .withCode((code_builder) -> {
                                 var right_label = code_builder.newLabel();
                                 var left_label = code_builder.newLabel();
                                 code_builder
                                         .labelBinding(left_label)
-                                        .block(array.load())
-                                        .block(pointer.load())
-                                        .iaload()
+                                        .block(array.loadIndex(pointer))
                                         .ifeq(right_label);
                                 
                                 for (var instruction : instructions) {
@@ -176,7 +193,7 @@ public sealed interface StateInstruction extends Instruction {
                                 code_builder
                                         .goto_(left_label)
                                         .labelBinding(right_label)
-                                        .return_();
+                                        .block(pointer.return_());
                             }));
             
             for (var instruction : instructions) {
@@ -189,21 +206,16 @@ public sealed interface StateInstruction extends Instruction {
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
-            var start = code_builder.newLabel();
-            var end = code_builder.newLabel();
-            
             code_builder
-                    .labelBinding(start)
-                    .block(array.loadIndex(pointer))
-                    .ifeq(end)
-                    .block(pointer.inc(step))
-                    .goto_(start)
-                    .labelBinding(end);
+                    .block(array.findZero(pointer, step));
         }
     }
     
     record Print(List<Byte> bytes) implements StateInstruction {
         
+        // the most bytes a CONSTANT_Utf8 can hold
+        private static final int CONSTANT_LIMIT = 65535;
+        
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
             if (bytes.size() == 1) {
@@ -212,68 +224,100 @@ public sealed interface StateInstruction extends Instruction {
                         .loadConstant(bytes.getFirst())
                         .block(output.write());
             } else {
-                bytes.stream()
-                        .gather(Gatherers.windowFixed(Character.MAX_VALUE))
-                        .forEachOrdered((split_chars) -> {
-                            var str = new String(ArrayUtils.toPrimitive(split_chars.toArray(Byte[]::new)), StandardCharsets.UTF_8);
-                            code_builder
-                                    .block(output.load())
-                                    .loadConstant(str)
-                                    .invokevirtual(PrintStream.class.describeConstable().orElseThrow(), "print",
-                                            MethodTypeDesc.ofDescriptor("(Ljava/lang/String;)V"));
-                        });
+                var raw = ArrayUtils.toPrimitive(bytes.toArray(Byte[]::new));
+                code_builder
+                        .block(output.load())
+                        .loadConstant(constant(raw))
+                        .loadConstant(0)
+                        .loadConstant(raw.length)
+                        .block(output.writeBytes());
             }
         }
+        
+        // a dynamic constant that resolves to the bytes themselves, they're stored as latin 1 strings since that maps
+        // every byte to the char with the same value and back (the constant pool has nothing for raw bytes),
+        // strings in the constant pool are limited to 64k so bigger outputs get joined back together when resolving
+        private static DynamicConstantDesc<byte[]> constant(byte[] raw) {
+            var cd_charset = Charset.class.describeConstable().orElseThrow();
+            
+            var chunks = new ArrayList<ConstantDesc>();
+            var start = 0;
+            var size = 0;
+            for (int i = 0; i < raw.length; i++) {
+                // how long the char is in modified utf 8
+                var length = (raw[i] > 0) ? 1 : 2;
+                if (size + length > CONSTANT_LIMIT) {
+                    chunks.add(new String(raw, start, i - start, StandardCharsets.ISO_8859_1));
+                    start = i;
+                    size = 0;
+                }
+                size += length;
+            }
+            chunks.add(new String(raw, start, raw.length - start, StandardCharsets.ISO_8859_1));
+            
+            ConstantDesc string;
+            if (chunks.size() == 1) {
+                string = chunks.getFirst();
+            } else {
+                var cd_char_sequence = CharSequence.class.describeConstable().orElseThrow();
+                var join = MethodHandleDesc.ofMethod(DirectMethodHandleDesc.Kind.STATIC, ConstantDescs.CD_String, "join",
+                        MethodTypeDesc.of(ConstantDescs.CD_String, cd_char_sequence, cd_char_sequence.arrayType()));
+                chunks.addFirst(join);
+                chunks.add(1, "");
+                string = DynamicConstantDesc.ofNamed(ConstantDescs.BSM_INVOKE, ConstantDescs.DEFAULT_NAME,
+                        ConstantDescs.CD_String, chunks.toArray(ConstantDesc[]::new));
+            }
+            
+            var latin_1 = DynamicConstantDesc.ofNamed(ConstantDescs.BSM_GET_STATIC_FINAL, "ISO_8859_1",
+                    cd_charset, StandardCharsets.class.describeConstable().orElseThrow());
+            var get_bytes = MethodHandleDesc.ofMethod(DirectMethodHandleDesc.Kind.VIRTUAL, ConstantDescs.CD_String, "getBytes",
+                    MethodTypeDesc.of(byte[].class.describeConstable().orElseThrow(), cd_charset));
+            return DynamicConstantDesc.ofNamed(ConstantDescs.BSM_INVOKE, ConstantDescs.DEFAULT_NAME,
+                    byte[].class.describeConstable().orElseThrow(), get_bytes, string, latin_1);
+        }
     }
     
+    // offsets are relative to wherever the pointer is when this runs
     record BulkSet(List<Entry> entries) implements StateInstruction {
         
-        record Entry(int index, int value) {
-            
-            public Entry {
-                value &= 255;
+        // one BulkSet is written out in one go so the class generator can't split it up, this keeps each one at about
+        // the size of a method the JIT still compiles
+        public static final int MAX_SIZE = 256;
+        
+        public record Entry(int offset, int value) {}
+        
+        public BulkSet {
+            entries = entries.stream()
+                    .sorted(Comparator.comparing(Entry::offset))
+                    .toList();
+        }
+        
+        // the entries as BulkSets of at most MAX_SIZE entries each
+        public static List<BulkSet> of(List<Entry> entries) {
+            var sorted = entries.stream()
+                    .sorted(Comparator.comparing(Entry::offset))
+                    .toList();
+            var list = new ArrayList<BulkSet>();
+            for (int i = 0; i < sorted.size(); i += MAX_SIZE) {
+                list.add(new BulkSet(sorted.subList(i, Math.min(i + MAX_SIZE, sorted.size()))));
             }
+            return list;
         }
         
         @Override
         public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
+            if (entries.isEmpty())
+                return;
+            
+            code_builder
+                    .block(pointer.reserve(entries.getFirst().offset(), entries.getLast().offset()));
+            
             for (var entry : entries) {
-                pointer = new Pointer() {
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> load() {
-                        return (code_builder) -> code_builder
-                                .loadConstant(entry.index());
-                    }
-                    
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> store(Value value) {
-                        return null;
-                    }
-                    
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> inc(Value amount) {
-                        return null;
-                    }
-                    
-                    @Override
-                    public Consumer<CodeBuilder.BlockCodeBuilder> inc(int amount) {
-                        return null;
-                    }
-                };
                 code_builder
-                        .block(array.storeIndex(pointer, () -> (e) -> e
+                        .block(array.storeIndex(pointer.offset(entry.offset()), () -> (e) -> e
                                 .loadConstant(entry.value())));
             }
         }
         
     }
-    
-    record PointerSet(int value) implements StateInstruction {
-        
-        @Override
-        public void writeCode(CodeBuilder code_builder, ClassDesc self, Array array, Pointer pointer, Input input, Output output) {
-            code_builder
-                    .block(pointer.store(() -> (e) -> e.loadConstant(value)));
-        }
-    }
 }
@@ -1,6 +1,9 @@
 package canaryprism.jbfc.optimise.state;
 
 import canaryprism.jbfc.Instruction;
+import canaryprism.jbfc.codegen.ClassGenerator;
+import canaryprism.jbfc.codegen.MethodSplitter;
+import canaryprism.jbfc.optimise.FlatProgram;
 import canaryprism.jbfc.optimise.Optimisation;
 import canaryprism.jbfc.optimise.flow.FlowInstruction;
 import org.apache.commons.lang3.ArrayUtils;
@@ -10,19 +13,55 @@ import java.lang.classfile.ClassFile;
 import java.lang.classfile.CodeBuilder;
 import java.lang.classfile.TypeKind;
 import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDescs;
 import java.lang.constant.MethodTypeDesc;
-import java.lang.reflect.AccessFlag;
-import java.lang.reflect.InvocationTargetException;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.*;
 import java.util.function.Consumer;
-import java.util.function.Predicate;
 
 public final class StateOptimisation implements Optimisation<FlowInstruction, StateInstruction> {
     
+    // roughly how many steps a program without input gets to run for at compile time, every loop check is one
+    public static final long DEFAULT_BUDGET = 100_000_000;
+    
+    private static final int TAPE_SIZE = 80_000;
+    private static final int TAPE_START = TAPE_SIZE / 2;
+    
+    // how many top level instructions go in each method of the evaluation class
+    private static final int PART_SIZE = 8;
+    // about how many snapshots evaluation takes over its whole budget, copying the tape more often than that would
+    // start to cost more than running it
+    private static final int SNAPSHOTS = 64;
+    
+    // a class file counts its constants and methods in 16 bits and so does a method its bytes of code
+    private static final int CLASS_FILE_LIMIT = 0xFFFF;
+    // more than the bytecode and constants the evaluation class needs besides what the program itself adds
+    private static final int CLASS_FILE_OVERHEAD = 256;
+    
+    private final int cell_bits;
+    private final long budget;
+    
+    public StateOptimisation() {
+        this(8, DEFAULT_BUDGET);
+    }
+    
+    private StateOptimisation(int cell_bits, long budget) {
+        this.cell_bits = cell_bits;
+        this.budget = budget;
+    }
+    
+    @Override
+    public StateOptimisation forCellSize(int bits) {
+        return new StateOptimisation(bits, budget);
+    }
+    
+    public StateOptimisation budget(long budget) {
+        if (budget < 0)
+            throw new IllegalArgumentException("budget can't be negative");
+        return new StateOptimisation(cell_bits, budget);
+    }
+    
     @Override
     public Class<FlowInstruction> getInput() {
         return FlowInstruction.class;
@@ -35,34 +74,53 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
     
     static class State {
         
-        int[] array = new int[80_000];
-        int pointer = 40_000;
+        final int mask;
+        
+        int[] array = new int[TAPE_SIZE];
+        int pointer = TAPE_START;
         boolean pointer_infected = false;
-        List<Predicate<Integer>> infection = new LinkedList<>();
+        long budget = Long.MAX_VALUE;
+        // the cells whose value depends on input
+        BitSet infection = new BitSet();
         
-        Map<Integer, Integer> modify_tracker = new HashMap<>();
+        // the cells changed since the generated code last caught up, array always has their value since
+        // only uninfected cells get tracked
+        BitSet modify_tracker = new BitSet();
         int pointer_modify_tracker = 0;
         
+        State(int cell_bits) {
+            this.mask = (cell_bits < Integer.SIZE) ? (1 << cell_bits) - 1 : -1;
+        }
+        
+        void tick() {
+            if (--budget < 0)
+                throw new BudgetExhausted();
+        }
+        
         boolean isPointerSafe() {
             return !pointer_infected;
         }
         
         void flushChanges(List<StateInstruction> instructions) {
-            var changes = modify_tracker.entrySet()
-                    .stream()
-                    .filter((e) -> !isInfected(e.getKey()))
-                    .map((e) -> new StateInstruction.BulkSet.Entry(e.getKey(), e.getValue()))
-                    .toList();
-            if (changes.isEmpty())
-                return;
-            instructions.add(new StateInstruction.BulkSet(changes));
+            // the generated code's pointer hasn't made the moves we've tracked since the last sync yet
+            var synced_pointer = pointer - pointer_modify_tracker;
+            var changes = new ArrayList<StateInstruction.BulkSet.Entry>();
+            for (int i = modify_tracker.nextSetBit(0); i >= 0; i = modify_tracker.nextSetBit(i + 1)) {
+                if (!isInfected(i))
+                    changes.add(new StateInstruction.BulkSet.Entry(i - synced_pointer, array[i]));
+            }
+            instructions.addAll(StateInstruction.BulkSet.of(changes));
+            
+            modify_tracker.clear();
             
+            syncPointer(instructions);
+        }
+        
+        void syncPointer(List<StateInstruction> instructions) {
             if (pointer_modify_tracker != 0) {
-                instructions.add(new StateInstruction.PointerSet(pointer));
+                instructions.add(new StateInstruction.Move(pointer_modify_tracker));
                 pointer_modify_tracker = 0;
             }
-            
-            modify_tracker.clear();
         }
         
         void movePointer(int amount) {
@@ -79,15 +137,15 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
         void setHere(int value) {
             if (array[pointer] == value)
                 return;
-            modify_tracker.put(pointer, value);
+            modify_tracker.set(pointer);
             array[pointer] = value;
         }
         
         void modifyHere(int amount) {
             if (amount == 0)
                 return;
-            modify_tracker.compute(pointer, (_, v) -> (v != null) ? v + amount : amount);
-            array[pointer] = (array[pointer] + amount) & 255;
+            modify_tracker.set(pointer);
+            array[pointer] = (array[pointer] + amount) & mask;
         }
         
         boolean isInfectedHere() {
@@ -95,8 +153,7 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
         }
         
         boolean isInfected(int index) {
-            return infection.stream()
-                    .anyMatch((e) -> e.test(index));
+            return infection.get(index);
         }
         
         @Override
@@ -104,9 +161,9 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
             try {
                 var o = ((State) super.clone());
                 
-                o.infection = new ArrayList<>(infection);
+                o.infection = (BitSet) infection.clone();
                 
-                o.modify_tracker = new HashMap<>(modify_tracker);
+                o.modify_tracker = (BitSet) modify_tracker.clone();
                 
                 return o;
                 
@@ -118,12 +175,55 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
     
     @Override
     public List<StateInstruction> optimise(List<FlowInstruction> input) {
-        var state = new State();
+        var state = new State(cell_bits);
         
-        if (input.stream().anyMatch((e) -> e instanceof FlowInstruction.Read))
+        try {
+            if (hasRead(input))
+                return optimise(input, state, false);
+            else
+                return evaluate(input);
+        } catch (IndexOutOfBoundsException _) {
+//            the program walked off our tape, the generated one might be bigger (or growable) so just
+//            translate everything without trying to run it
+            state = new State(cell_bits);
+            state.pointer_infected = true;
             return optimise(input, state, false);
-        else
-            return List.of(interpret(input));
+        }
+    }
+    
+    private static boolean hasRead(List<FlowInstruction> input) {
+        return input.stream().anyMatch((e) -> switch (e) {
+            case FlowInstruction.Read _ -> true;
+            case FlowInstruction.Loop(var instructions, var _) -> hasRead(instructions);
+            default -> false;
+        });
+    }
+    
+    // where the pointer ends up relative to offset after running instructions once, adding every offset they can write
+    // to into written, empty if that depends on the tape (a FindZero or an unbalanced loop)
+    private static OptionalInt balance(List<FlowInstruction> instructions, int offset, Set<Integer> written) {
+        for (var e : instructions) {
+            switch (e) {
+                case FlowInstruction.Move(var amount) -> offset += amount;
+                case FlowInstruction.Modify _, FlowInstruction.Set _, FlowInstruction.Read _ -> written.add(offset);
+                case FlowInstruction.Write _ -> {}
+                case FlowInstruction.Transfer(var targets) -> {
+                    written.add(offset);
+                    for (var target : targets) {
+                        written.add(offset + target.offset());
+                    }
+                }
+                case FlowInstruction.Loop(var body, var _) -> {
+                    var end = balance(body, offset, written);
+                    if (end.isEmpty() || end.getAsInt() != offset)
+                        return OptionalInt.empty();
+                }
+                case FlowInstruction.FindZero _ -> {
+                    return OptionalInt.empty();
+                }
+            }
+        }
+        return OptionalInt.of(offset);
     }
     
     List<StateInstruction> optimise(List<FlowInstruction> input, State state, boolean loop) {
@@ -134,8 +234,7 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
             if (state.isPointerSafe()) {
                 switch (e) {
                     case FlowInstruction.Read _ -> {
-                        var pointer = state.pointer;
-                        state.infection.add((i) -> i == pointer);
+                        state.infection.set(state.pointer);
                         
                         state.flushChanges(output);
                         
@@ -143,6 +242,7 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
                     }
                     case FlowInstruction.Write _ -> {
                         if (state.isInfectedHere()) {
+                            state.syncPointer(output);
                             output.add(StateInstruction.Write.INSTANCE);
                         } else {
                             if (output.peekLast() instanceof StateInstruction.Print(var list)) {
@@ -169,6 +269,7 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
                     }
                     case FlowInstruction.Modify(var amount) -> {
                         if (state.isInfectedHere()) {
+                            state.syncPointer(output);
                             output.add(new StateInstruction.Modify(amount));
                         } else {
                             state.modifyHere(amount);
@@ -176,6 +277,7 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
                     }
                     case FlowInstruction.Set(var value) -> {
                         if (state.isInfectedHere()) {
+                            state.syncPointer(output);
                             output.add(new StateInstruction.Set(value));
                         } else {
                             state.setHere(value);
@@ -185,12 +287,13 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
                         if (state.isInfectedHere()) {
                             state.flushChanges(output);
                             for (var target : targets) {
-                                var offset = target.offset();
-                                state.infection.add((i) -> i == offset);
+                                var index = state.pointer + target.offset();
+                                state.infection.set(index);
                             }
                             output.add(new StateInstruction.Transfer(targets.stream()
                                     .map((target) -> new StateInstruction.Transfer.Target(target.offset(), target.multiplier()))
                                     .toList()));
+                            continue;
                         } else if (state.array[state.pointer] == 0) {
                             continue;
                         }
@@ -213,8 +316,27 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
                     }
                     case FlowInstruction.Loop(var instructions, var _) -> {
                         if (state.isInfectedHere()) {
-                            state.pointer_infected = true; // welp, no more state tracking :p
                             state.flushChanges(output);
+                            
+                            var written = new TreeSet<Integer>();
+                            var end = balance(instructions, 0, written);
+                            if (end.isPresent() && end.getAsInt() == 0) {
+//                                every iteration ends up back where it started so we still know where the pointer is
+//                                afterwards, we just don't know what's in the cells the loop writes to anymore
+                                var translation = new State(cell_bits);
+                                translation.pointer_infected = true;
+                                output.add(new StateInstruction.Loop(optimise(instructions, translation, false)));
+                                
+                                for (var offset : written) {
+                                    state.infection.set(state.pointer + offset);
+                                }
+//                                except for the one it checks, the loop can only end once that's 0
+                                state.infection.clear(state.pointer);
+                                state.array[state.pointer] = 0;
+                                continue;
+                            }
+                            
+                            state.pointer_infected = true; // welp, no more state tracking :p
                         } else if (state.array[state.pointer] == 0) {
                             continue;
                         }
@@ -235,213 +357,449 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
                     case FlowInstruction.Transfer(var targets) -> new StateInstruction.Transfer(targets.stream()
                             .map((target) -> new StateInstruction.Transfer.Target(target.offset(), target.multiplier()))
                             .toList());
-                    case FlowInstruction.Loop(var instructions, var _) -> new StateInstruction.Loop(optimise(instructions, state, true));
+                    case FlowInstruction.Loop(var instructions, var _) -> new StateInstruction.Loop(optimise(instructions, state, false));
                     case FlowInstruction.FindZero(var step) -> new StateInstruction.FindZero(step);
                 };
                 output.add(instruction);
             }
         }
         
-        if (state.isPointerSafe() && loop) {
-//            if we got through an entire loop here without infecting the pointer,
-//            we need to run the loop contents here more times
+        if (loop) {
+//            we only get here with a loop over a known cell that isn't 0 so output is its first time around,
+//            if we got through it without infecting the pointer we need to run the loop contents here more times
 //            until the current cell becomes 0
 //            to do this we just run this method more times until it is
-//            **or**
-//            worst case scenario we end up infecting the pointer here which means we'll have to redo this loop since
-//            all the constant folding we *thought* we could do are actually invalid
-        
-            while (state.isPointerSafe() && state.array[state.pointer] != 0) {
-//                see here we run it without loop because otherwise it'd also do this loop and that'd be bad hehe
-                var instructions = optimise(input, state, false);
-                if (state.isPointerSafe()) {
-//                    yippee
-                    output.addAll(instructions);
-                } else {
-//                    noooo
-                    output.add(new StateInstruction.Loop(optimise(input, state, false)));
+            while (state.isPointerSafe() && (state.isInfectedHere() || state.array[state.pointer] != 0)) {
+                if (state.isInfectedHere()) {
+//                    the cell the loop checks depends on input now so there's no telling how many more times it goes
+//                    around, the rest of it has to be a real loop and after that we don't know where the pointer is
+                    state.flushChanges(output);
+                    state.pointer_infected = true;
+                    break;
                 }
+//                see here we run it without loop because otherwise it'd also do this loop and that'd be bad hehe
+                output.addAll(optimise(input, state, false));
             }
             
             if (!state.isPointerSafe()) {
 //                nooooo
-//                rerun this exact method, but now state has an infected pointer so it will just
-//                convert the instructions without attempting any constant propagation
-//                whether loop is true or false doesn't matter
-                return optimise(input, state, false);
+//                somewhere in there the pointer stopped being known, everything we knew up to that point got flushed and
+//                the rest of that time around got translated as is, so what's in output is all still right
+//                whether it goes around again is up to the generated code now
+                output.add(new StateInstruction.Loop(optimise(input, state, false)));
             }
 //            woohoo i guess
         }
         return output;
     }
     
-    StateInstruction.Print interpret(List<FlowInstruction> input) {
-        if (System.getProperty("org.graalvm.nativeimage.imagecode") == null)
-            return new StateInstruction.Print(compile(input));
-        else
-            return new StateInstruction.Print(interpret(input, new State()));
+    // runs the program at compile time, if it's still going once the budget runs out then whatever it got done by the
+    // last snapshot gets folded, into a Print and a BulkSet of the tape, and the rest is compiled as is
+    // snapshots only get taken between top level instructions and before every check of a top level loop, so how far
+    // into an inner loop it got doesn't count, for a program that's one big loop that's every time around it
+    List<StateInstruction> evaluate(List<FlowInstruction> input) {
+        var evaluation = (System.getProperty("org.graalvm.nativeimage.imagecode") == null)
+                ? compile(input)
+                : interpret(input);
+        
+        var output = new ArrayList<StateInstruction>();
+        if (!evaluation.output().isEmpty())
+            output.add(new StateInstruction.Print(new LinkedList<>(evaluation.output())));
+        if (evaluation.done() == input.size())
+            return output;
+        
+        // the generated code starts in the middle of the tape like we do so everything is relative to that
+        var entries = new ArrayList<StateInstruction.BulkSet.Entry>();
+        for (int i = 0; i < evaluation.array().length; i++) {
+            if (evaluation.array()[i] != 0)
+                entries.add(new StateInstruction.BulkSet.Entry(i - TAPE_START, evaluation.array()[i]));
+        }
+        output.addAll(StateInstruction.BulkSet.of(entries));
+        if (evaluation.pointer() != TAPE_START)
+            output.add(new StateInstruction.Move(evaluation.pointer() - TAPE_START));
+        
+        var state = new State(cell_bits);
+        state.pointer_infected = true;
+        output.addAll(optimise(input.subList(evaluation.done(), input.size()), state, false));
+        return output;
     }
     
-    List<Byte> compile(List<FlowInstruction> instructions) {
+    // done is how many top level instructions got run, the tape and the output are what they left behind
+    // the instruction at done can be a top level loop that already went around a few times, carrying on from its check
+    // is the same as running the loop from there
+    record Evaluation(List<Byte> output, int[] array, int pointer, int done) {}
+    
+    // where the evaluation was at the last point it could stop, it only actually copies anything once the budget has
+    // gone down by at least interval since the last one so it can be called as often as is convenient
+    // the evaluation class calls take() too so it can't be private
+    static final class Snapshot {
+        
+        private final long interval;
+        private long next;
+        
+        private int done = 0;
+        // null until the first one, before that the tape is still all 0
+        private int[] array = null;
+        private int pointer = TAPE_START;
+        private int output_length = 0;
+        
+        Snapshot(long budget) {
+            this.interval = Math.max(1, budget / SNAPSHOTS);
+            this.next = budget - interval;
+        }
+        
+        void take(int done, long budget, int[] array, int pointer, int output_length) {
+            if (budget > next)
+                return;
+            next = budget - interval;
+            
+            this.done = done;
+            this.array = array.clone();
+            this.pointer = pointer;
+            this.output_length = output_length;
+        }
+        
+        // output is everything that got written, including after the snapshot
+        Evaluation restore(List<Byte> output) {
+            return new Evaluation(output.subList(0, output_length),
+                    (array != null) ? array : new int[TAPE_SIZE], pointer, done);
+        }
+    }
+    
+    // thrown once the budget runs out, the stack trace would be of the generated code so there's no point filling it in
+    static final class BudgetExhausted extends RuntimeException {
+        BudgetExhausted() {
+            super(null, null, false, false);
+        }
+    }
+    
+    Evaluation interpret(List<FlowInstruction> input) {
+        var state = new State(cell_bits);
+        state.budget = budget;
+        var snapshot = new Snapshot(budget);
+        var bytes = new ArrayList<Byte>();
         try {
-            var zip_path = Files.createTempFile(null, ".zip");
-            Files.deleteIfExists(zip_path);
-            var classname = "State";
-            try (var fs = FileSystems.newFileSystem(zip_path, Map.of("create", true))) {
-                var root = fs.getPath("/");
-                var classfile = ClassFile.of();
-                var path = root.resolve(classname + ".class");
-                var data = classfile.build(ClassDesc.of(classname), (class_builder) -> {
-                    
-                    var self = ClassDesc.of(classname);
-                    
-                    var array = new Instruction.Array() {
-                        @Override
-                        public Consumer<CodeBuilder.BlockCodeBuilder> load() {
-                            return (builder) -> builder
-                                    .getstatic(self, "array", int[].class.describeConstable().orElseThrow());
-                        }
-                        
-                        @Override
-                        public Consumer<CodeBuilder.BlockCodeBuilder> loadIndex(Instruction.Pointer pointer) {
-                            return (builder) -> builder
-                                    .getstatic(self, "array", int[].class.describeConstable().orElseThrow())
-                                    .block(pointer.load())
-                                    .iaload();
-                        }
-                        
-                        @Override
-                        public Consumer<CodeBuilder.BlockCodeBuilder> storeIndex(Instruction.Pointer pointer, Instruction.Value value) {
-                            return (builder) -> builder
-                                    .getstatic(self, "array", int[].class.describeConstable().orElseThrow())                                .block(pointer.load())
-                                    .block(value.load())
-                                    .iastore();
-                        }
-                        
-                        @Override
-                        public Consumer<CodeBuilder.BlockCodeBuilder> incIndex(Instruction.Pointer pointer, Instruction.Value amount) {
-                            return (builder) -> builder
-                                    .getstatic(self, "array", int[].class.describeConstable().orElseThrow())                                .block(pointer.load())
-                                    .dup2()
-                                    .iaload()
-                                    .block(amount.load())
-                                    .iadd()
-                                    .iastore();
-                        }
-                    };
-                    
-                    var pointer = new Instruction.Pointer() {
-                        @Override
-                        public Consumer<CodeBuilder.BlockCodeBuilder> load() {
-                            return (builder) -> builder
-                                    .getstatic(self, "pointer", int.class.describeConstable().orElseThrow());
-                        }
-                        
-                        @Override
-                        public Consumer<CodeBuilder.BlockCodeBuilder> store(Instruction.Value value) {
-                            return (builder) -> builder
-                                    .block(value.load())
-                                    .putstatic(self, "pointer", int.class.describeConstable().orElseThrow());                    }
-                        
-                        @Override
-                        public Consumer<CodeBuilder.BlockCodeBuilder> inc(Instruction.Value amount) {
-                            return (builder) -> builder
-                                    .block(amount.load())
-                                    .getstatic(self, "pointer", int.class.describeConstable().orElseThrow())                                .iadd()
-                                    .putstatic(self, "pointer", int.class.describeConstable().orElseThrow());
-                        }
-                        
-                        @Override
-                        public Consumer<CodeBuilder.BlockCodeBuilder> inc(int amount) {
-                            return this.inc(() -> (builder) -> builder
-                                    .loadConstant(amount));
-                        }
-                    };
-                    
-                    var inputstream = new Instruction.Input() {
-                        @Override
-                        public Consumer<CodeBuilder.BlockCodeBuilder> read() {
-                            return (builder) -> builder
-                                    .invokevirtual(InputStream.class.describeConstable().orElseThrow(), "read",
-                                            MethodTypeDesc.ofDescriptor("()I"));
-                        }
-                        
-                        @Override
-                        public Consumer<CodeBuilder.BlockCodeBuilder> load() {
-                            return (builder) -> builder
-                                    .getstatic(System.class.describeConstable().orElseThrow(), "in",
-                                            InputStream.class.describeConstable().orElseThrow());
-                        }
-                    };
-                    var outputstream = new Instruction.Output() {
-                        @Override
-                        public Consumer<CodeBuilder.BlockCodeBuilder> write() {
-                            return (builder) -> builder
-                                    .invokevirtual(OutputStream.class.describeConstable().orElseThrow(), "write",
-                                            MethodTypeDesc.ofDescriptor("(I)V"));
-                        }
-                        
-                        @Override
-                        public Consumer<CodeBuilder.BlockCodeBuilder> load() {
-                            return (builder) -> builder
-                                    .getstatic(self, "output",
-                                            PrintStream.class.describeConstable().orElseThrow());
-                        }
-                    };
-                    
-                    class_builder
-                            .withField("array", int[].class.describeConstable().orElseThrow(), ClassFile.ACC_STATIC)
-                            .withField("pointer", int.class.describeConstable().orElseThrow(), ClassFile.ACC_STATIC)
-                            .withField("outputstream", OutputStream.class.describeConstable().orElseThrow(), ClassFile.ACC_STATIC | ClassFile.ACC_PUBLIC)
-                            .withField("output", PrintStream.class.describeConstable().orElseThrow(), ClassFile.ACC_STATIC | ClassFile.ACC_PUBLIC)
-                            .withMethod("main", MethodTypeDesc.ofDescriptor("([Ljava/lang/String;)V"), AccessFlag.STATIC.mask(), (method_builder) -> method_builder
-                                    .withFlags(AccessFlag.PUBLIC, AccessFlag.STATIC)
-                                    .withCode((code_builder) -> {
-                                        code_builder
-                                                .loadConstant(80_000)
-                                                .newarray(TypeKind.INT)
-                                                .putstatic(self, "array", int[].class.describeConstable().orElseThrow())
-                                                .loadConstant(40_000)
-                                                .putstatic(self, "pointer", int.class.describeConstable().orElseThrow())
-                                                .new_(PrintStream.class.describeConstable().orElseThrow())
-                                                .dup()
-                                                .new_(ByteArrayOutputStream.class.describeConstable().orElseThrow())
-                                                .dup()
-                                                .dup()
-                                                .invokespecial(ByteArrayOutputStream.class.describeConstable().orElseThrow(), "<init>", MethodTypeDesc.ofDescriptor("()V"))
-                                                .putstatic(self, "outputstream", OutputStream.class.describeConstable().orElseThrow())
-                                                .invokespecial(PrintStream.class.describeConstable().orElseThrow(), "<init>", MethodTypeDesc.ofDescriptor("(Ljava/io/OutputStream;)V"))
-                                                .putstatic(self, "output", PrintStream.class.describeConstable().orElseThrow());
-                                        for (var e : instructions) {
-                                            e.writeCode(code_builder, self, array, pointer, inputstream, outputstream);
-                                        }
-                                        code_builder
-                                                .return_();
-                                    }));
-                    for (var e : instructions) {
-                        e.writeClass(class_builder, self, array, pointer, inputstream, outputstream);
+            for (int i = 0; i < input.size(); i++) {
+                snapshot.take(i, state.budget, state.array, state.pointer, bytes.size());
+                if (input.get(i) instanceof FlowInstruction.Loop(var instructions, var _)) {
+                    // the same as interpreting the Loop but with a snapshot before every check
+                    while (state.array[state.pointer] != 0) {
+                        state.tick();
+                        bytes.addAll(interpret(instructions, state));
+                        snapshot.take(i, state.budget, state.array, state.pointer, bytes.size());
                     }
-                });
-                
-                Files.write(path, data);
-                
+                } else {
+                    bytes.addAll(interpret(List.of(input.get(i)), state));
+                }
             }
-            try (var classloader = new URLClassLoader(new URL[] { zip_path.toUri().toURL() })) {
-                var state = classloader.loadClass(classname);
-                state.getMethod("main", String[].class).invoke(null, (Object) new String[0]);
-                var outputstream = ((ByteArrayOutputStream) state.getField("outputstream").get(null));
-                return List.of(ArrayUtils.toObject(outputstream.toByteArray()));
-            } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException |
-                     InvocationTargetException | NoSuchFieldException e) {
-                throw new RuntimeException(e);
-            } finally {
-                Files.deleteIfExists(zip_path);
+        } catch (BudgetExhausted _) {
+            return snapshot.restore(bytes);
+        }
+        return new Evaluation(bytes, state.array, state.pointer, input.size());
+    }
+    
+    // the program becomes a hidden class with a run(JLSnapshot;)V method that runs it with a budget, every loadIndex
+    // (so every loop check) calls tick()V which takes one off the budget and the part methods call checkpoint(I)V
+    // wherever interpret(List) takes a snapshot
+    // if the class would be over any of the JVM's limits the program gets interpreted instead
+    Evaluation compile(List<FlowInstruction> instructions) {
+        var mask = new State(cell_bits).mask;
+        var lookup = MethodHandles.lookup();
+        var self = ClassDesc.of(lookup.lookupClass().getPackageName(), "Evaluation");
+        var classfile = ClassFile.of();
+        var cd_int_array = int[].class.describeConstable().orElseThrow();
+        var cd_budget_exhausted = BudgetExhausted.class.describeConstable().orElseThrow();
+        var cd_snapshot = Snapshot.class.describeConstable().orElseThrow();
+        var cd_byte_array_output_stream = ByteArrayOutputStream.class.describeConstable().orElseThrow();
+        
+        var array = new Instruction.Array() {
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                return (builder) -> builder
+                        .getstatic(self, "array", int[].class.describeConstable().orElseThrow());
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> loadIndex(Instruction.Pointer pointer) {
+                return (builder) -> builder
+                        .invokestatic(self, "tick", ConstantDescs.MTD_void)
+                        .getstatic(self, "array", int[].class.describeConstable().orElseThrow())
+                        .block(pointer.load())
+                        .iaload();
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> storeIndex(Instruction.Pointer pointer, Instruction.Value value) {
+                return (builder) -> builder
+                        .getstatic(self, "array", int[].class.describeConstable().orElseThrow())                                .block(pointer.load())
+                        .block(value.load())
+                        .loadConstant(mask)
+                        .iand()
+                        .iastore();
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> incIndex(Instruction.Pointer pointer, Instruction.Value amount) {
+                return (builder) -> builder
+                        .getstatic(self, "array", int[].class.describeConstable().orElseThrow())                                .block(pointer.load())
+                        .dup2()
+                        .iaload()
+                        .block(amount.load())
+                        .iadd()
+                        .loadConstant(mask)
+                        .iand()
+                        .iastore();
+            }
+        };
+        
+        var pointer = new Instruction.Pointer() {
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                return (builder) -> builder
+                        .getstatic(self, "pointer", int.class.describeConstable().orElseThrow());
             }
-        } catch (IOException e) {
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> store(Instruction.Value value) {
+                return (builder) -> builder
+                        .block(value.load())
+                        .putstatic(self, "pointer", int.class.describeConstable().orElseThrow());                    }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> inc(Instruction.Value amount) {
+                return (builder) -> builder
+                        .block(amount.load())
+                        .getstatic(self, "pointer", int.class.describeConstable().orElseThrow())                                .iadd()
+                        .putstatic(self, "pointer", int.class.describeConstable().orElseThrow());
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> inc(int amount) {
+                return this.inc(() -> (builder) -> builder
+                        .loadConstant(amount));
+            }
+        };
+        
+        var inputstream = new Instruction.Input() {
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> read() {
+                return (builder) -> builder
+                        .invokevirtual(InputStream.class.describeConstable().orElseThrow(), "read",
+                                MethodTypeDesc.ofDescriptor("()I"));
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                return (builder) -> builder
+                        .getstatic(System.class.describeConstable().orElseThrow(), "in",
+                                InputStream.class.describeConstable().orElseThrow());
+            }
+        };
+        var outputstream = new Instruction.Output() {
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> write() {
+                return (builder) -> builder
+                        .invokevirtual(OutputStream.class.describeConstable().orElseThrow(), "write",
+                                MethodTypeDesc.ofDescriptor("(I)V"));
+            }
+            
+            @Override
+            public Consumer<CodeBuilder.BlockCodeBuilder> load() {
+                return (builder) -> builder
+                        .getstatic(self, "output",
+                                PrintStream.class.describeConstable().orElseThrow());
+            }
+        };
+        
+        // top level instructions get split up one at a time so there can be a checkpoint between them, and top level
+        // loops get written out in the part methods so there can be one before every check too, they go into methods
+        // PART_SIZE at a time so run stays small however long the program is
+        var splitter = new MethodSplitter(classfile, ClassGenerator.DEFAULT_METHOD_SIZE, self,
+                array, pointer, inputstream, outputstream);
+        var parts = new ArrayList<List<Instruction>>(instructions.size());
+        for (var e : instructions) {
+            parts.add(switch (e) {
+                case FlowInstruction.Loop(var body, var _) -> splitter.split(body);
+                default -> List.of(e);
+            });
+        }
+        
+        // a class over any of the JVM's limits can't be built at all, the interpreter is slower but has no limits
+        if (!fits(instructions, parts, splitter))
+            return interpret(instructions);
+        
+        var data = classfile.build(self, (class_builder) -> {
+            class_builder
+                    .withField("array", cd_int_array, ClassFile.ACC_STATIC)
+                    .withField("pointer", ConstantDescs.CD_int, ClassFile.ACC_STATIC)
+                    .withField("budget", ConstantDescs.CD_long, ClassFile.ACC_STATIC)
+                    .withField("snapshot", cd_snapshot, ClassFile.ACC_STATIC)
+                    .withField("outputstream", OutputStream.class.describeConstable().orElseThrow(), ClassFile.ACC_STATIC)
+                    .withField("output", PrintStream.class.describeConstable().orElseThrow(), ClassFile.ACC_STATIC)
+                    .withMethodBody("tick", ConstantDescs.MTD_void, ClassFile.ACC_STATIC, (code_builder) -> {
+                        var left = code_builder.newLabel();
+                        code_builder
+                                .getstatic(self, "budget", ConstantDescs.CD_long)
+                                .lconst_1()
+                                .lsub()
+                                .dup2()
+                                .putstatic(self, "budget", ConstantDescs.CD_long)
+                                .lconst_0()
+                                .lcmp()
+                                .ifge(left)
+                                .new_(cd_budget_exhausted)
+                                .dup()
+                                .invokespecial(cd_budget_exhausted, ConstantDescs.INIT_NAME, ConstantDescs.MTD_void)
+                                .athrow()
+                                .labelBinding(left)
+                                .return_();
+                    })
+                    .withMethodBody("checkpoint", MethodTypeDesc.ofDescriptor("(I)V"), ClassFile.ACC_STATIC, (code_builder) -> code_builder
+                            .getstatic(self, "snapshot", cd_snapshot)
+                            .iload(0)
+                            .getstatic(self, "budget", ConstantDescs.CD_long)
+                            .getstatic(self, "array", cd_int_array)
+                            .getstatic(self, "pointer", ConstantDescs.CD_int)
+                            .getstatic(self, "outputstream", OutputStream.class.describeConstable().orElseThrow())
+                            .checkcast(cd_byte_array_output_stream)
+                            .invokevirtual(cd_byte_array_output_stream, "size", MethodTypeDesc.ofDescriptor("()I"))
+                            .invokevirtual(cd_snapshot, "take", MethodTypeDesc.ofDescriptor("(IJ[III)V"))
+                            .return_())
+                    .withMethodBody("run", MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_long, cd_snapshot), ClassFile.ACC_STATIC, (code_builder) -> {
+                        code_builder
+                                .loadConstant(TAPE_SIZE)
+                                .newarray(TypeKind.INT)
+                                .putstatic(self, "array", cd_int_array)
+                                .loadConstant(TAPE_START)
+                                .putstatic(self, "pointer", ConstantDescs.CD_int)
+                                .lload(0)
+                                .putstatic(self, "budget", ConstantDescs.CD_long)
+                                .aload(2)
+                                .putstatic(self, "snapshot", cd_snapshot)
+                                .new_(PrintStream.class.describeConstable().orElseThrow())
+                                .dup()
+                                .new_(ByteArrayOutputStream.class.describeConstable().orElseThrow())
+                                .dup()
+                                .dup()
+                                .invokespecial(ByteArrayOutputStream.class.describeConstable().orElseThrow(), "<init>", MethodTypeDesc.ofDescriptor("()V"))
+                                .putstatic(self, "outputstream", OutputStream.class.describeConstable().orElseThrow())
+                                .invokespecial(PrintStream.class.describeConstable().orElseThrow(), "<init>", MethodTypeDesc.ofDescriptor("(Ljava/io/OutputStream;)V"))
+                                .putstatic(self, "output", PrintStream.class.describeConstable().orElseThrow());
+                        for (int i = 0; i < parts.size(); i += PART_SIZE) {
+                            code_builder
+                                    .invokestatic(self, "part" + i / PART_SIZE, ConstantDescs.MTD_void);
+                        }
+                        code_builder
+                                .return_();
+                    });
+            
+            for (int start = 0; start < parts.size(); start += PART_SIZE) {
+                var first = start;
+                var last = Math.min(start + PART_SIZE, parts.size());
+                class_builder
+                        .withMethodBody("part" + start / PART_SIZE, ConstantDescs.MTD_void, ClassFile.ACC_STATIC, (code_builder) -> {
+                            for (int i = first; i < last; i++) {
+                                var check = code_builder.newLabel();
+                                var end = code_builder.newLabel();
+                                var loop = instructions.get(i) instanceof FlowInstruction.Loop;
+                                code_builder
+                                        .labelBinding(check)
+                                        .loadConstant(i)
+                                        .invokestatic(self, "checkpoint", MethodTypeDesc.ofDescriptor("(I)V"));
+                                if (loop)
+                                    code_builder
+                                            .block(array.loadIndex(pointer))
+                                            .ifeq(end);
+                                for (var e : parts.get(i)) {
+                                    e.writeCode(code_builder, self, array, pointer, inputstream, outputstream);
+                                }
+                                if (loop)
+                                    code_builder
+                                            .goto_(check);
+                                code_builder
+                                        .labelBinding(end);
+                            }
+                            code_builder
+                                    .return_();
+                        });
+            }
+            for (var part : parts) {
+                for (var e : part) {
+                    e.writeClass(class_builder, self, array, pointer, inputstream, outputstream);
+                }
+            }
+        });
+        
+        try {
+            var evaluation = lookup.defineHiddenClass(data, true);
+            var type = evaluation.lookupClass();
+            var run = evaluation.findStatic(type, "run", MethodType.methodType(void.class, long.class, Snapshot.class));
+            
+            var snapshot = new Snapshot(budget);
+            var exhausted = false;
+            try {
+                run.invokeExact(budget, snapshot);
+            } catch (BudgetExhausted _) {
+                exhausted = true;
+            }
+            
+            var outputstream = (OutputStream) evaluation.findStaticGetter(type, "outputstream", OutputStream.class).invokeExact();
+            var output = List.of(ArrayUtils.toObject(((ByteArrayOutputStream) outputstream).toByteArray()));
+            if (exhausted)
+                return snapshot.restore(output);
+            return new Evaluation(
+                    output,
+                    (int[]) evaluation.findStaticGetter(type, "array", int[].class).invokeExact(),
+                    (int) evaluation.findStaticGetter(type, "pointer", int.class).invokeExact(),
+                    instructions.size());
+        } catch (IndexOutOfBoundsException e) {
+            throw e;
+        } catch (Throwable e) {
             throw new RuntimeException(e);
         }
     }
     
+    // whether the evaluation class for instructions split into parts stays under the JVM's limits, every method is
+    // a few constants (its name and what calls it) and so is every number that doesn't fit in a short
+    private static boolean fits(List<FlowInstruction> instructions, List<List<Instruction>> parts, MethodSplitter splitter) {
+        var part_methods = (parts.size() + PART_SIZE - 1) / PART_SIZE;
+        var methods = splitter.methods() + part_methods + 3;
+        
+        var program = FlatProgram.of(instructions);
+        var numbers = new HashSet<Integer>();
+        for (int i = 0; i < program.length(); i++) {
+            if (program.opcode(i) == FlatProgram.TRANSFER) {
+                for (int target = 0; target < program.jump(i); target++) {
+                    numbers.add(program.targetOffset(i, target));
+                    numbers.add(program.targetMultiplier(i, target));
+                }
+            } else {
+                numbers.add(program.operand(i));
+            }
+        }
+        numbers.removeIf((number) -> number >= Short.MIN_VALUE && number <= Short.MAX_VALUE);
+        // the checkpoints pass their index as a number too
+        var constants = methods * 4 + numbers.size() + Math.max(0, parts.size() - Short.MAX_VALUE) + CLASS_FILE_OVERHEAD;
+        if (methods > CLASS_FILE_LIMIT || constants > CLASS_FILE_LIMIT)
+            return false;
+        
+        if (splitter.largest() + CLASS_FILE_OVERHEAD > CLASS_FILE_LIMIT)
+            return false;
+        // run is a call to every part method, and those have a checkpoint before every part and a loop around the ones
+        // from top level loops
+        if (part_methods * 4 + CLASS_FILE_OVERHEAD > CLASS_FILE_LIMIT)
+            return false;
+        for (int start = 0; start < parts.size(); start += PART_SIZE) {
+            var size = CLASS_FILE_OVERHEAD;
+            for (var part : parts.subList(start, Math.min(start + PART_SIZE, parts.size()))) {
+                size += splitter.size(part) + 32;
+            }
+            if (size > CLASS_FILE_LIMIT)
+                return false;
+        }
+        return true;
+    }
+    
     List<Byte> interpret(List<FlowInstruction> input, State state) {
         var bytes = new LinkedList<Byte>();
         for (var e : input) {
@@ -453,6 +811,7 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
                 case FlowInstruction.FindZero(var step) -> {
                     var pointer = state.pointer;
                     while (state.array[pointer] != 0) {
+                        state.tick();
                         pointer += step;
                     }
                     state.setPointer(pointer);
@@ -468,8 +827,10 @@ public final class StateOptimisation implements Optimisation<FlowInstruction, St
                     state.setHere(0);
                 }
                 case FlowInstruction.Loop(var instructions, var _) -> {
-                    while (state.array[state.pointer] != 0)
+                    while (state.array[state.pointer] != 0) {
+                        state.tick();
                         bytes.addAll(interpret(instructions, state));
+                    }
                 }
                 case FlowInstruction.Write _ -> bytes.add(((byte) state.array[state.pointer]));
             }
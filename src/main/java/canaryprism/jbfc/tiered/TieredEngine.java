@@ -0,0 +1,156 @@
+package canaryprism.jbfc.tiered;
+
+import canaryprism.jbfc.codegen.ClassGenerator;
+import canaryprism.jbfc.optimise.flow.FlowInstruction;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.constant.ClassDesc;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// runs a FlowInstruction program in an interpreter and compiles a loop into a hidden class once it's gone around
+// enough times, the compiled loop takes the interpreter's own int[] tape and returns the pointer so both tiers
+// always agree on where everything is
+// compiled code is generated with LOCAL storage and DIRECT input and output, so the interpreter goes through
+// System.in and System.out too and the output stays in order
+public final class TieredEngine {
+    
+    public static final int DEFAULT_THRESHOLD = 1000;
+    
+    private static final MethodType LOOP_TYPE = MethodType.methodType(int.class, int[].class, int.class);
+    
+    private final ClassGenerator generator = new ClassGenerator()
+            .storage(ClassGenerator.Storage.LOCAL)
+            .outputMode(ClassGenerator.OutputMode.DIRECT)
+            .inputMode(ClassGenerator.InputMode.DIRECT)
+            .cellType(ClassGenerator.CellType.MASKED_INT)
+            .tape(ClassGenerator.Tape.FIXED);
+    
+    private int threshold = DEFAULT_THRESHOLD;
+    private int mask = 0xFF;
+    private int tape_size = ClassGenerator.Tape.FIXED.defaultSize();
+    private Integer tape_start;
+    
+    // how many times each loop has gone around, by identity since the same loop in two places gets counted separately
+    private final IdentityHashMap<FlowInstruction.Loop, Integer> counts = new IdentityHashMap<>();
+    // compiled loops by name, equal loops have the same name so they only get compiled once
+    private final HashMap<String, MethodHandle> compiled = new HashMap<>();
+    
+    private int[] array;
+    private int pointer;
+    
+    public TieredEngine threshold(int threshold) {
+        if (threshold < 0)
+            throw new IllegalArgumentException("threshold can't be negative");
+        this.threshold = threshold;
+        return this;
+    }
+    
+    // both tiers share an int[] tape so only cells that compile to one work, byte cells wrap the same as masked_int
+    // ones so they get run as those
+    public TieredEngine cellType(ClassGenerator.CellType cell_type) {
+        switch (cell_type) {
+            case MASKED_INT, BYTE -> generator.cellType(ClassGenerator.CellType.MASKED_INT);
+            case INT -> generator.cellType(ClassGenerator.CellType.INT);
+            case CHAR -> throw new IllegalArgumentException("tiered execution can't run char cells");
+        }
+        this.mask = (cell_type.bits() < Integer.SIZE) ? (1 << cell_type.bits()) - 1 : -1;
+        return this;
+    }
+    
+    public TieredEngine tapeSize(int tape_size) {
+        if (tape_size <= 0)
+            throw new IllegalArgumentException("tape size must be positive");
+        this.tape_size = tape_size;
+        return this;
+    }
+    
+    public TieredEngine tapeStart(int tape_start) {
+        this.tape_start = tape_start;
+        return this;
+    }
+    
+    public void run(List<FlowInstruction> program) {
+        var start = (tape_start != null) ? tape_start : tape_size / 2;
+        if (start < 0 || start >= tape_size)
+            throw new IllegalArgumentException("tape start " + start + " is outside a tape of " + tape_size + " cells");
+        
+        array = new int[tape_size];
+        pointer = start;
+        counts.clear();
+        
+        interpret(program);
+        System.out.flush();
+    }
+    
+    private void interpret(List<FlowInstruction> instructions) {
+        for (var instruction : instructions) {
+            switch (instruction) {
+                case FlowInstruction.Move(var amount) -> pointer += amount;
+                case FlowInstruction.Modify(var amount) -> array[pointer] = (array[pointer] + amount) & mask;
+                case FlowInstruction.Set(var value) -> array[pointer] = value & mask;
+                case FlowInstruction.Write _ -> System.out.write(array[pointer]);
+                case FlowInstruction.Read _ -> {
+                    try {
+                        array[pointer] = System.in.read() & mask;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                case FlowInstruction.FindZero(var step) -> {
+                    while (array[pointer] != 0)
+                        pointer += step;
+                }
+                case FlowInstruction.Transfer(var targets) -> {
+                    var value = array[pointer];
+                    for (var target : targets) {
+                        array[pointer + target.offset()] = (array[pointer + target.offset()] + value * target.multiplier()) & mask;
+                    }
+                    array[pointer] = 0;
+                }
+                case FlowInstruction.Loop loop -> {
+                    var count = counts.getOrDefault(loop, 0);
+                    while (array[pointer] != 0) {
+                        if (count >= threshold) {
+                            // the compiled loop checks the cell first so it carries on from exactly this iteration
+                            pointer = invoke(compile(loop));
+                            break;
+                        }
+                        interpret(loop.instructions());
+                        count++;
+                    }
+                    counts.put(loop, count);
+                }
+            }
+        }
+    }
+    
+    private MethodHandle compile(FlowInstruction.Loop loop) {
+        return compiled.computeIfAbsent(loop.name(), (name) -> {
+            // hidden classes have to be in the same package as the lookup that defines them
+            var lookup = MethodHandles.lookup();
+            var data = generator.generateMethod(ClassDesc.of(lookup.lookupClass().getPackageName(), name), "run", List.of(loop));
+            try {
+                var hidden = lookup.defineHiddenClass(data, true);
+                return hidden.findStatic(hidden.lookupClass(), "run", LOOP_TYPE);
+            } catch (IllegalAccessException | NoSuchMethodException e) {
+                throw new RuntimeException("failed to compile " + name, e);
+            }
+        });
+    }
+    
+    private int invoke(MethodHandle loop) {
+        try {
+            return (int) loop.invokeExact(array, pointer);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 module canaryprism.jbfc {
     requires info.picocli;
     requires org.apache.commons.lang3;
+    requires jdk.management;
     uses canaryprism.jbfc.optimise.Optimisation;
     
     opens canaryprism.jbfc to info.picocli;
@@ -10,10 +11,12 @@ module canaryprism.jbfc {
     exports canaryprism.jbfc.optimise;
     exports canaryprism.jbfc.optimise.collapse;
     exports canaryprism.jbfc.optimise.flow;
+    exports canaryprism.jbfc.optimise.offset;
     exports canaryprism.jbfc.optimise.state;
     
     provides canaryprism.jbfc.optimise.Optimisation with
             canaryprism.jbfc.optimise.collapse.CollapseOptimisation,
             canaryprism.jbfc.optimise.flow.FlowOptimisation,
+            canaryprism.jbfc.optimise.offset.OffsetOptimisation,
             canaryprism.jbfc.optimise.state.StateOptimisation;
 }
\ No newline at end of file
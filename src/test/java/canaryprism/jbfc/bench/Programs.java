@@ -0,0 +1,72 @@
+package canaryprism.jbfc.bench;
+
+import java.util.Random;
+
+// the programs the benchmarks compile and the tests check generated code against, all of them terminate without any
+// input since state runs them at compile time
+public final class Programs {
+    
+    private static final String HELLO = "++++++++[>++++[>++>+++>+++>+<<<<-]>+>+>->>+[<]<-]>>.>---.+++++++..+++.>>.<-.<.+++.------.--------.>>+.>++.";
+    
+    private Programs() {}
+    
+    // size is roughly how many instructions the program has
+    public static String get(String name, int size) {
+        return switch (name) {
+            case "hello" -> HELLO.repeat(Math.max(1, size / HELLO.length()));
+            case "text" -> text(size);
+            case "nested" -> nested(size);
+            default -> throw new IllegalArgumentException("no program called " + name);
+        };
+    }
+    
+    // what text to bf generators spit out, a multiply loop and a few adjustments for every character
+    private static String text(int size) {
+        var random = new Random(size);
+        var builder = new StringBuilder(size + 64);
+        while (builder.length() < size) {
+            var c = ' ' + random.nextInt('~' - ' ');
+            builder
+                    .append("[-]>[-]")
+                    .append("+".repeat(c / 8))
+                    .append("[<++++++++>-]<")
+                    .append("+".repeat(c % 8))
+                    .append('.');
+        }
+        return builder.toString();
+    }
+    
+    // counted loops nested a few deep with transfers, scans and pointer shuffling inside, the kind of code the passes
+    // actually have to think about
+    private static String nested(int size) {
+        var random = new Random(size);
+        var builder = new StringBuilder(size + 64);
+        while (builder.length() < size) {
+            nested(builder, random, 3);
+            // onto cells nothing has touched yet so no counter starts off with whatever the last one left behind
+            builder.append(">".repeat(16));
+        }
+        return builder.toString();
+    }
+    
+    // leaves the pointer where it started and only touches the 16 cells to the right of it
+    private static void nested(StringBuilder builder, Random random, int depth) {
+        builder
+                .append("+".repeat(2 + random.nextInt(3)))
+                .append("[>");
+        for (int i = random.nextInt(4); i >= 0; i--) {
+            switch (random.nextInt(depth > 0 ? 5 : 4)) {
+                case 0 -> builder.append("+".repeat(1 + random.nextInt(8))).append("-".repeat(random.nextInt(3)));
+                case 1 -> builder.append(">").append("+".repeat(1 + random.nextInt(4))).append("[->+>++<<]<");
+                case 2 -> builder.append(">>[-<+>]<[-]<");
+                case 3 -> builder.append(">[-]<");
+                case 4 -> {
+                    builder.append(">");
+                    nested(builder, random, depth - 1);
+                    builder.append("<");
+                }
+            }
+        }
+        builder.append("<-]>[-]<");
+    }
+}
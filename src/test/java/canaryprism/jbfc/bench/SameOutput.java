@@ -0,0 +1,62 @@
+package canaryprism.jbfc.bench;
+
+import canaryprism.jbfc.Instruction;
+import canaryprism.jbfc.bf.BrainfuckInstruction;
+import canaryprism.jbfc.interpret.Interpreter;
+import canaryprism.jbfc.optimise.collapse.CollapseOptimisation;
+import canaryprism.jbfc.optimise.flow.FlowInstruction;
+import canaryprism.jbfc.optimise.flow.FlowOptimisation;
+import org.junit.jupiter.api.function.ThrowingSupplier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+// what the tests check everything against, the same program straight from the parser run in the interpreter
+public final class SameOutput {
+    
+    // a broken pass can easily turn a loop into one that never ends
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    
+    private SameOutput() {}
+    
+    public static List<BrainfuckInstruction> parse(String source) throws IOException {
+        return BrainfuckInstruction.parse(new ByteArrayInputStream(source.getBytes(StandardCharsets.US_ASCII)));
+    }
+    
+    public static List<FlowInstruction> flow(String source, int bits) throws IOException {
+        return new FlowOptimisation().forCellSize(bits)
+                .optimise(new CollapseOptimisation().optimise(parse(source)));
+    }
+    
+    public static List<FlowInstruction> flow(String source) throws IOException {
+        return flow(source, 8);
+    }
+    
+    public static byte[] run(Interpreter interpreter, List<? extends Instruction> program, byte[] input) {
+        var output = new ByteArrayOutputStream();
+        interpreter.run(program, new ByteArrayInputStream(input), output);
+        return output.toByteArray();
+    }
+    
+    // optimised has to print what source does unoptimised, both run in interpreter
+    public static void assertSameOutput(Interpreter interpreter, String source, byte[] input, List<? extends Instruction> optimised) throws IOException {
+        var expected = run(interpreter, parse(source), input);
+        assertSameOutput(expected, () -> run(interpreter, optimised, input), optimised::toString);
+    }
+    
+    public static void assertSameOutput(String source, byte[] input, List<? extends Instruction> optimised) throws IOException {
+        assertSameOutput(new Interpreter(), source, input, optimised);
+    }
+    
+    public static void assertSameOutput(byte[] expected, ThrowingSupplier<byte[]> actual, Supplier<String> message) {
+        assertArrayEquals(expected, assertTimeoutPreemptively(TIMEOUT, actual, message), message);
+    }
+}
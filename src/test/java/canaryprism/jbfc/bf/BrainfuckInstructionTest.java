@@ -0,0 +1,72 @@
+package canaryprism.jbfc.bf;
+
+import canaryprism.jbfc.bf.BrainfuckInstruction.BasicInstruction;
+import canaryprism.jbfc.bf.BrainfuckInstruction.LoopInstruction;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// bad brackets get reported with the byte offset of the bracket at fault, comments count towards the offset
+class BrainfuckInstructionTest {
+    
+    private static List<BrainfuckInstruction> parse(String source) throws IOException {
+        return BrainfuckInstruction.parse(new ByteArrayInputStream(source.getBytes(StandardCharsets.US_ASCII)));
+    }
+    
+    private static void assertFails(String message, String source) {
+        var e = assertThrows(IOException.class, () -> parse(source));
+        assertEquals(message, e.getMessage());
+    }
+    
+    @Test
+    void loops() throws IOException {
+        assertEquals(List.of(
+                BasicInstruction.INCREMENT,
+                new LoopInstruction(List.of(
+                        BasicInstruction.RIGHT,
+                        new LoopInstruction(List.of()),
+                        BasicInstruction.WRITE)),
+                BasicInstruction.READ), parse("+ [>[ comment ].] ,"));
+    }
+    
+    @Test
+    void unclosedLoop() {
+        assertFails("unbalanced [ at byte 0, found end of stream", "[[]");
+    }
+    
+    // the one still open innermost is the one that gets reported
+    @Test
+    void unclosedNestedLoop() {
+        assertFails("unbalanced [ at byte 3, found end of stream", "[a [[]");
+    }
+    
+    @Test
+    void unopenedLoop() {
+        assertFails("unbalanced ] at byte 2", "[]]");
+    }
+    
+    @Test
+    void unopenedLoopAfterComment() {
+        assertFails("unbalanced ] at byte 5", "+ no ]");
+    }
+    
+    // loops are kept on a stack instead of recursing so this shouldn't get anywhere near overflowing
+    @Test
+    void deeplyNested() throws IOException {
+        var depth = 2000;
+        var program = parse("[".repeat(depth) + "+" + "]".repeat(depth));
+        
+        for (var i = 0; i < depth; i++) {
+            assertEquals(1, program.size());
+            program = assertInstanceOf(LoopInstruction.class, program.getFirst()).instructions();
+        }
+        assertEquals(List.of(BasicInstruction.INCREMENT), program);
+    }
+}
@@ -0,0 +1,166 @@
+package canaryprism.jbfc.codegen;
+
+import canaryprism.jbfc.Instruction;
+import canaryprism.jbfc.bench.Programs;
+import canaryprism.jbfc.interpret.Interpreter;
+import canaryprism.jbfc.optimise.offset.OffsetOptimisation;
+import canaryprism.jbfc.optimise.state.StateOptimisation;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.ClassTransform;
+import java.lang.classfile.Opcode;
+import java.lang.classfile.instruction.FieldInstruction;
+import java.lang.constant.ClassDesc;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import static canaryprism.jbfc.bench.SameOutput.assertSameOutput;
+import static canaryprism.jbfc.bench.SameOutput.flow;
+import static canaryprism.jbfc.bench.SameOutput.parse;
+import static canaryprism.jbfc.bench.SameOutput.run;
+
+// generated classes against the same program run unoptimised in the interpreter, over the benchmark programs and one
+// that reads, with every combination of options that changes what gets generated
+// straight line code keeps cells in locals (Block's CachedCells) so one that doesn't get stored back before a loop
+// check, a call or a write shows up as different output, the small methods make plenty of blocks end at a call
+class ClassGeneratorTest {
+    
+    private static final int SIZE = 2000;
+    private static final int SMALL_METHOD_SIZE = 256;
+    
+    // reads text up to a 0, scans back over it and writes it out, then the same again on every other cell so both the
+    // word at a time scan and the strided one get a long way to go
+    private static final String SCANS = ">,[>,]<[<]>[.>]>>,[>>,]<<[<<]>>[.>>]";
+    private static final byte[] SCANS_INPUT = ("the quick brown fox jumps over the lazy dog ".repeat(8) + "\0"
+            + "abcdefghij".repeat(5) + "\0").getBytes(StandardCharsets.US_ASCII);
+    
+    // buffered input and output go through FileDescriptor.in and out instead of System.in and out, redirect() points
+    // the generated class at these instead
+    static FileDescriptor in;
+    static FileDescriptor out;
+    
+    private static byte[] redirect(byte[] data) {
+        var classfile = ClassFile.of();
+        var cd_file_descriptor = FileDescriptor.class.describeConstable().orElseThrow();
+        var self = MethodHandles.lookup().lookupClass().describeConstable().orElseThrow();
+        return classfile.transformClass(classfile.parse(data), ClassTransform.transformingMethodBodies((builder, element) -> {
+            if (element instanceof FieldInstruction field && field.opcode() == Opcode.GETSTATIC
+                    && field.owner().asSymbol().equals(cd_file_descriptor)) {
+                builder.getstatic(self, field.name().stringValue(), cd_file_descriptor);
+            } else {
+                builder.with(element);
+            }
+        }));
+    }
+    
+    // input is in stdin and in a file given as the first argument so every input mode gets it, and whichever output
+    // the program used is what comes back
+    private static byte[] runGenerated(ClassGenerator generator, List<? extends Instruction> program, byte[] input) throws Throwable {
+        var lookup = MethodHandles.lookup();
+        var data = redirect(generator.generate(ClassDesc.of(lookup.lookupClass().getPackageName(), "Program"), program));
+        var hidden = lookup.defineHiddenClass(data, true);
+        var main = hidden.findStatic(hidden.lookupClass(), "main", MethodType.methodType(void.class, String[].class));
+        
+        var input_file = Files.createTempFile("jbfc", ".in");
+        var output_file = Files.createTempFile("jbfc", ".out");
+        var system_in = System.in;
+        var system_out = System.out;
+        var output = new ByteArrayOutputStream();
+        try {
+            Files.write(input_file, input);
+            try (var in_stream = new FileInputStream(input_file.toFile());
+                 var out_stream = new FileOutputStream(output_file.toFile())) {
+                in = in_stream.getFD();
+                out = out_stream.getFD();
+                System.setIn(new ByteArrayInputStream(input));
+                System.setOut(new PrintStream(output));
+                main.invokeExact(new String[] { input_file.toString() });
+            } finally {
+                System.setIn(system_in);
+                System.setOut(system_out);
+            }
+            output.write(Files.readAllBytes(output_file));
+        } finally {
+            Files.deleteIfExists(input_file);
+            Files.deleteIfExists(output_file);
+        }
+        return output.toByteArray();
+    }
+    
+    // none of the programs print anything different with wider cells, which is just as well since the interpreter
+    // would count a 32 bit cell down from -1 one step at a time
+    private static void assertProgram(String name, String source, byte[] input) throws Throwable {
+        var expected = run(new Interpreter(), parse(source), input);
+        for (var cell_type : ClassGenerator.CellType.values()) {
+            var bits = cell_type.bits();
+            
+            var flow = flow(source, bits);
+            var levels = Map.<String, List<? extends Instruction>>of(
+                    "flow", flow,
+                    "offset", new OffsetOptimisation().forCellSize(bits).optimise(flow),
+                    "state", new StateOptimisation().forCellSize(bits).optimise(flow));
+            
+            for (var level : levels.entrySet()) {
+                for (var storage : ClassGenerator.Storage.values()) {
+                    for (var tape : ClassGenerator.Tape.values()) {
+                        for (var method_size : new int[] { ClassGenerator.DEFAULT_METHOD_SIZE, SMALL_METHOD_SIZE }) {
+                            for (var find_zero_mode : ClassGenerator.FindZeroMode.values()) {
+                                for (var output_mode : ClassGenerator.OutputMode.values()) {
+                                    for (var input_mode : ClassGenerator.InputMode.values()) {
+                                        var generator = new ClassGenerator()
+                                                .cellType(cell_type)
+                                                .storage(storage)
+                                                .tape(tape)
+                                                .methodSize(method_size)
+                                                .findZeroMode(find_zero_mode)
+                                                .outputMode(output_mode)
+                                                .inputMode(input_mode);
+                                        assertSameOutput(expected, () -> runGenerated(generator, level.getValue(), input), () -> name
+                                                + " at " + level.getKey() + " with " + cell_type + " cells, " + storage + " storage, a "
+                                                + tape + " tape, " + method_size + " byte methods, " + find_zero_mode + " scans, "
+                                                + output_mode + " output and " + input_mode + " input");
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    private static void assertProgram(String name) throws Throwable {
+        assertProgram(name, Programs.get(name, SIZE), new byte[0]);
+    }
+    
+    @Test
+    void hello() throws Throwable {
+        assertProgram("hello");
+    }
+    
+    @Test
+    void text() throws Throwable {
+        assertProgram("text");
+    }
+    
+    @Test
+    void nested() throws Throwable {
+        assertProgram("nested");
+    }
+    
+    @Test
+    void scans() throws Throwable {
+        assertProgram("scans", SCANS, SCANS_INPUT);
+    }
+}
@@ -0,0 +1,142 @@
+package canaryprism.jbfc.optimise;
+
+import canaryprism.jbfc.optimise.collapse.CollapseInstruction;
+import canaryprism.jbfc.optimise.collapse.CollapseOptimisation;
+import canaryprism.jbfc.optimise.flow.FlowInstruction;
+import canaryprism.jbfc.optimise.flow.FlowInstruction.Transfer.Target;
+import canaryprism.jbfc.optimise.flow.FlowOptimisation;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// flattening and lifting again should give back exactly what went in, loop names included since they come from the
+// bodies, and parsing should report bad brackets with the byte offset of the one at fault
+class FlatProgramTest {
+    
+    private static void assertRoundTrip(List<FlowInstruction> program) {
+        assertEquals(program, new FlowOptimisation().lift(FlatProgram.of(program)));
+    }
+    
+    private static FlatProgram parse(String source) throws IOException {
+        return FlatProgram.parse(new ByteArrayInputStream(source.getBytes(StandardCharsets.US_ASCII)));
+    }
+    
+    private static void assertFails(String message, String source) {
+        var e = assertThrows(IOException.class, () -> parse(source));
+        assertEquals(message, e.getMessage());
+    }
+    
+    @Test
+    void empty() {
+        assertRoundTrip(List.of());
+    }
+    
+    @Test
+    void straight() {
+        assertRoundTrip(List.of(
+                new FlowInstruction.Modify(3),
+                new FlowInstruction.Move(-2),
+                FlowInstruction.Read.INSTANCE,
+                new FlowInstruction.Set(7),
+                FlowInstruction.Write.INSTANCE,
+                new FlowInstruction.FindZero(-4)));
+    }
+    
+    @Test
+    void emptyLoops() {
+        assertRoundTrip(List.of(
+                new FlowInstruction.Loop(List.of()),
+                new FlowInstruction.Loop(List.of(new FlowInstruction.Loop(List.of()))),
+                new FlowInstruction.Modify(1)));
+    }
+    
+    @Test
+    void nestedLoops() {
+        assertRoundTrip(List.of(
+                new FlowInstruction.Modify(8),
+                new FlowInstruction.Loop(List.of(
+                        new FlowInstruction.Move(1),
+                        new FlowInstruction.Loop(List.of(
+                                new FlowInstruction.Move(1),
+                                new FlowInstruction.Loop(List.of(FlowInstruction.Write.INSTANCE)),
+                                new FlowInstruction.Modify(-1))),
+                        new FlowInstruction.Move(-1),
+                        new FlowInstruction.Modify(-1))),
+                new FlowInstruction.Loop(List.of(new FlowInstruction.Move(-1)))));
+    }
+    
+    // the targets of every Transfer share one pool so each one has to get back only its own
+    @Test
+    void transfers() {
+        assertRoundTrip(List.of(
+                new FlowInstruction.Transfer(List.of(new Target(1, 1))),
+                new FlowInstruction.Loop(List.of(
+                        new FlowInstruction.Transfer(List.of(new Target(-3, 2), new Target(2, -1), new Target(5, 7))),
+                        new FlowInstruction.Move(1))),
+                new FlowInstruction.Transfer(List.of(new Target(-1, 255)))));
+    }
+    
+    @Test
+    void collapse() {
+        List<CollapseInstruction> program = List.of(
+                new CollapseInstruction.Modify(-5),
+                new CollapseInstruction.Loop(List.of(
+                        new CollapseInstruction.Move(2),
+                        new CollapseInstruction.Loop(List.of()),
+                        CollapseInstruction.Read.INSTANCE)),
+                CollapseInstruction.Write.INSTANCE);
+        assertEquals(program, new CollapseOptimisation().lift(FlatProgram.of(program)));
+    }
+    
+    @Test
+    void parseLoops() throws IOException {
+        var program = parse("++ [>>[ comment ].] -,");
+        assertEquals(List.of(
+                new CollapseInstruction.Modify(2),
+                new CollapseInstruction.Loop(List.of(
+                        new CollapseInstruction.Move(2),
+                        new CollapseInstruction.Loop(List.of()),
+                        CollapseInstruction.Write.INSTANCE)),
+                new CollapseInstruction.Modify(-1),
+                CollapseInstruction.Read.INSTANCE), new CollapseOptimisation().lift(program));
+    }
+    
+    @Test
+    void parseUnclosedLoop() {
+        assertFails("unbalanced [ at byte 0, found end of stream", "[[]");
+    }
+    
+    // the one still open innermost is the one that gets reported
+    @Test
+    void parseUnclosedNestedLoop() {
+        assertFails("unbalanced [ at byte 3, found end of stream", "[a [[]");
+    }
+    
+    @Test
+    void parseUnopenedLoop() {
+        assertFails("unbalanced ] at byte 2", "[]]");
+    }
+    
+    // every LOOP jumps to its own END and back, all the way down
+    @Test
+    void parseDeeplyNested() throws IOException {
+        var depth = 2000;
+        var program = parse("[".repeat(depth) + "+" + "]".repeat(depth));
+        
+        assertEquals(depth * 2 + 1, program.length());
+        for (var i = 0; i < depth; i++) {
+            var end = program.length() - 1 - i;
+            assertEquals(FlatProgram.LOOP, program.opcode(i));
+            assertEquals(FlatProgram.END, program.opcode(end));
+            assertEquals(end, program.jump(i));
+            assertEquals(i, program.jump(end));
+        }
+        assertEquals(FlatProgram.MODIFY, program.opcode(depth));
+    }
+}
@@ -0,0 +1,108 @@
+package canaryprism.jbfc.optimise;
+
+import canaryprism.jbfc.optimise.collapse.CollapseInstruction;
+import canaryprism.jbfc.optimise.collapse.CollapseOptimisation;
+import canaryprism.jbfc.optimise.flow.FlowInstruction;
+import canaryprism.jbfc.optimise.flow.FlowOptimisation;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// repeating passes and checking pipelines, with a pass whose repeats do whatever the test says
+class PassManagerTest {
+    
+    // takes collapse and gives flow so the only reason it can repeat is that it's a RepeatableOptimisation
+    private record Stub(UnaryOperator<List<FlowInstruction>> step)
+            implements Optimisation<CollapseInstruction, FlowInstruction>, RepeatableOptimisation<FlowInstruction> {
+        
+        @Override
+        public Class<CollapseInstruction> getInput() {
+            return CollapseInstruction.class;
+        }
+        
+        @Override
+        public Class<FlowInstruction> getOutput() {
+            return FlowInstruction.class;
+        }
+        
+        @Override
+        public List<FlowInstruction> optimise(List<CollapseInstruction> input) {
+            return new FlowOptimisation().optimise(input);
+        }
+        
+        @Override
+        public List<FlowInstruction> reoptimise(List<FlowInstruction> program) {
+            return step.apply(program);
+        }
+        
+        @Override
+        public String getIdentifier() {
+            return "stub";
+        }
+    }
+    
+    private static PassManager pipeline(Stub stub) {
+        return new PassManager(List.of(
+                new PassManager.Pass(new CollapseOptimisation(), false),
+                new PassManager.Pass(stub, true)));
+    }
+    
+    // every repeat takes out one Write until there are none left, then one more run to see nothing changed
+    @Test
+    void repeatsUntilNothingChanges() throws IOException {
+        var stub = new Stub((program) -> {
+            var output = new ArrayList<>(program);
+            output.remove(FlowInstruction.Write.INSTANCE);
+            return output;
+        });
+        var timings = new ArrayList<PassManager.Timing>();
+        var warnings = new ArrayList<String>();
+        
+        var output = pipeline(stub).run("+.+.+.".getBytes(StandardCharsets.US_ASCII), timings, warnings);
+        
+        var modify = new FlowInstruction.Modify(1);
+        assertEquals(List.of(modify, modify, modify), output);
+        assertEquals(1 + 3 + 1, timings.getLast().iterations());
+        assertEquals(List.of(), warnings);
+    }
+    
+    @Test
+    void warnsWhenItNeverStops() throws IOException {
+        var stub = new Stub((program) -> {
+            var output = new ArrayList<>(program);
+            output.add(FlowInstruction.Write.INSTANCE);
+            return output;
+        });
+        var timings = new ArrayList<PassManager.Timing>();
+        var warnings = new ArrayList<String>();
+        
+        var output = pipeline(stub).run("+".getBytes(StandardCharsets.US_ASCII), timings, warnings);
+        
+        assertEquals(PassManager.MAX_ITERATIONS, timings.getLast().iterations());
+        // what the last run gave is what comes out
+        assertEquals(PassManager.MAX_ITERATIONS, output.size());
+        assertEquals(1, warnings.size(), warnings::toString);
+        assertTrue(warnings.getFirst().contains("'stub'"), warnings::toString);
+    }
+    
+    // the stub takes collapse but the first pass gets brainfuck
+    @Test
+    void mismatchedPipelineFailsUpFront() {
+        var stub = new Stub(UnaryOperator.identity());
+        assertThrows(IllegalArgumentException.class, () -> new PassManager(List.of(new PassManager.Pass(stub, false))));
+    }
+    
+    // collapse doesn't take its own output and isn't a RepeatableOptimisation
+    @Test
+    void unrepeatablePassFailsUpFront() {
+        assertThrows(IllegalArgumentException.class, () -> new PassManager.Pass(new CollapseOptimisation(), true));
+    }
+}
@@ -0,0 +1,48 @@
+package canaryprism.jbfc.optimise.flow;
+
+import canaryprism.jbfc.interpret.Interpreter;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static canaryprism.jbfc.bench.SameOutput.assertSameOutput;
+import static canaryprism.jbfc.bench.SameOutput.flow;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// transfer loops against the same program run unoptimised, both in the interpreter
+class FlowOptimisationTest {
+    
+    // makes the cell 2 to the right of the pointer 256 and leaves the pointer where it was
+    private static final String SET_256 = ">>>++++++++++++++++[<++++++++++++++++>-]<<<";
+    // takes n 0 256 0 0 0 to 0 n 256-n%256 n%256 n/256 0 and writes n%256 and n/256, so both halves of a 16 bit cell
+    // get seen
+    private static final String WRITE_16 = "[->+>-[>+>>]>[+[-<+>]>+>>]<<<<<<]>>>.>.";
+    
+    // the loop has to actually have become a Transfer, otherwise this checks nothing
+    private static void assertTransfer(String source, int bits) throws IOException {
+        var optimised = flow(source, bits);
+        assertTrue(optimised.stream().anyMatch(FlowInstruction.Transfer.class::isInstance), () -> "no Transfer in " + optimised);
+        assertSameOutput(new Interpreter().cellBits(bits), source, new byte[0], optimised);
+    }
+    
+    // 10 isn't a multiple of 3 so the origin wraps around before it gets to 0
+    @Test
+    void stepOfThree() throws IOException {
+        assertTransfer("++++++++++[--->+<]>.", 8);
+    }
+    
+    @Test
+    void evenStep() throws IOException {
+        assertTransfer("------[-->++<]>.", 8);
+    }
+    
+    @Test
+    void positiveStepNegativeTarget() throws IOException {
+        assertTransfer("++++++++++[+++>-<]>.", 8);
+    }
+    
+    @Test
+    void sixteenBitCells() throws IOException {
+        assertTransfer("++++++++++[--->+<]>" + SET_256 + WRITE_16, 16);
+    }
+}
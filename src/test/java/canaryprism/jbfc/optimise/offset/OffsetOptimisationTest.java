@@ -0,0 +1,59 @@
+package canaryprism.jbfc.optimise.offset;
+
+import canaryprism.jbfc.codegen.ClassGenerator;
+import canaryprism.jbfc.interpret.Interpreter;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static canaryprism.jbfc.bench.SameOutput.assertSameOutput;
+import static canaryprism.jbfc.bench.SameOutput.flow;
+
+// the offset pass (and running it over its own output) against the same program run unoptimised, both in the
+// interpreter, once on a big fixed tape and once on a growable tape of one cell so every cell the reordered
+// instructions touch has to have been reserved first
+class OffsetOptimisationTest {
+    
+    private static void assertOffsetKeepsOutput(String source, byte[] input) throws IOException {
+        var optimised = new OffsetOptimisation().optimise(flow(source));
+        var reoptimised = new OffsetOptimisation().reoptimise(optimised);
+        for (var tape : ClassGenerator.Tape.values()) {
+            var interpreter = new Interpreter()
+                    .tape(tape);
+            if (tape == ClassGenerator.Tape.GROWABLE)
+                interpreter
+                        .tapeSize(1)
+                        .tapeStart(0);
+            assertSameOutput(interpreter, source, input, optimised);
+            assertSameOutput(interpreter, source, input, reoptimised);
+        }
+    }
+    
+    // the Set on the right hand target is still pending when the Transfer adds to it
+    @Test
+    void transferBothWays() throws IOException {
+        assertOffsetKeepsOutput("+>>+++++>[-]++<[<++>>+++<-]<.>>.<.<<.", new byte[0]);
+    }
+    
+    @Test
+    void transferLeftOfStart() throws IOException {
+        assertOffsetKeepsOutput("<<<+++>>>>++<+++[<<<+>>>>++<-]<<<.>>>>.<.", new byte[0]);
+    }
+    
+    // the Modify waiting for the cell gets dropped but the one for its neighbour doesn't
+    @Test
+    void readOverPendingModify() throws IOException {
+        assertOffsetKeepsOutput("+++>++<,.>.<+.", "A".getBytes(StandardCharsets.US_ASCII));
+    }
+    
+    @Test
+    void readOverPendingSet() throws IOException {
+        assertOffsetKeepsOutput("[-]+++,.", "B".getBytes(StandardCharsets.US_ASCII));
+    }
+    
+    @Test
+    void writesInsideLoop() throws IOException {
+        assertOffsetKeepsOutput("+++[>++.>+<<-]>>.", new byte[0]);
+    }
+}
@@ -0,0 +1,69 @@
+package canaryprism.jbfc.optimise.state;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static canaryprism.jbfc.bench.SameOutput.assertSameOutput;
+import static canaryprism.jbfc.bench.SameOutput.flow;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+// the state pass against the same program run unoptimised, both in the interpreter
+class StateOptimisationTest {
+    
+    // the loop gets unrolled while it's counting down from a known value, then the cell it checks gets overwritten
+    // with one that came from input
+    @Test
+    void loopCheckingInputStopsUnrolling() throws IOException {
+        var source = ",>+[<[->+<.]>-]";
+        assertSameOutput(source, "A".getBytes(StandardCharsets.US_ASCII), new StateOptimisation().optimise(flow(source)));
+    }
+    
+    @Test
+    void loopReadingItsOwnCheck() throws IOException {
+        var source = "+[,]";
+        assertSameOutput(source, new byte[] { 'A', 'B', 0 }, new StateOptimisation().optimise(flow(source)));
+    }
+    
+    // the scan over the cell that came from input loses the pointer on the first time around the unrolled loop, the
+    // cell before it has to still get its value and the loop still has to go around again
+    @Test
+    void pointerLostInFirstUnrolledIteration() throws IOException {
+        var source = ">++[->,[<]>]<<.";
+        assertSameOutput(source, new byte[] { 5, 7, 0 }, new StateOptimisation().optimise(flow(source)));
+    }
+    
+    @Test
+    void unbalancedLoopOverInput() throws IOException {
+        var source = ">++[->,[.<]>]<<.";
+        assertSameOutput(source, new byte[] { 5, 7, 0 }, new StateOptimisation().optimise(flow(source)));
+    }
+    
+    // the first time around only prints what's already known, that Print has to stay when the second time loses the
+    // pointer
+    @Test
+    void pointerLostInLaterUnrolledIteration() throws IOException {
+        var source = ">+++[-.>[>,.[<]>[-]]+<]<.";
+        assertSameOutput(source, new byte[] { 5, 7, 9, 0 }, new StateOptimisation().optimise(flow(source)));
+    }
+    
+    // one big loop runs out of budget partway, every time around it that finished has to be folded into the Print
+    @Test
+    void budgetRunsOutInTopLevelLoop() throws IOException {
+        var source = "++++++++++[>+++++.<-]";
+        var optimised = new StateOptimisation().budget(5).optimise(flow(source));
+        assertInstanceOf(StateInstruction.Print.class, optimised.getFirst(), optimised::toString);
+        assertSameOutput(source, new byte[0], optimised);
+    }
+    
+    // the inner loop is where the budget runs out the second time around the outer one, so only the first time around
+    // gets folded
+    @Test
+    void budgetRunsOutInNestedLoop() throws IOException {
+        var source = "++++[>+++[>++.<-]<-]";
+        var optimised = new StateOptimisation().budget(6).optimise(flow(source));
+        assertInstanceOf(StateInstruction.Print.class, optimised.getFirst(), optimised::toString);
+        assertSameOutput(source, new byte[0], optimised);
+    }
+}